@@ -0,0 +1,63 @@
+#!/usr/bin/perl
+
+# Generates a command file of 2PC transactions for PipelinedNode2PC.
+#
+# Starts the nodes, then every round for a number of rounds has random
+# nodes coordinate transactions with random participants. It then waits
+# for the transactions to finish and has every node report on the ones it
+# coordinated.
+#
+# usage: gen_2pc_workload.pl [-n nodes] [-t txns per round] [-r rounds]
+#                            [-p participants per txn] [-w rounds to wait]
+#                            [-s seed] > commandfile
+
+use Getopt::Std;
+
+main();
+
+sub main {
+    my %opts = (n => 4, t => 8, r => 20, p => 2, w => 60, s => 1);
+    getopts("n:t:r:p:w:s:", \%opts) or usage();
+    my ($nodes, $txns, $rounds, $participants, $wait) =
+        ($opts{n}, $opts{t}, $opts{r}, $opts{p}, $opts{w});
+    if ($participants >= $nodes) {
+        die "need more than $participants nodes\n";
+    }
+    srand($opts{s});
+
+    print "# $txns transactions a round for $rounds rounds, ",
+        "with $participants participants each, on $nodes nodes\n";
+    for my $i (0 .. $nodes - 1) {
+        print "start $i\n";
+    }
+    print "time\n";
+
+    for my $round (1 .. $rounds) {
+        for (1 .. $txns) {
+            my $coordinator = int(rand($nodes));
+            my %chosen = ($coordinator => 1);
+            my @members;
+            while (@members < $participants) {
+                my $p = int(rand($nodes));
+                next if $chosen{$p}++;
+                push @members, $p;
+            }
+            print "$coordinator txn @members\n";
+        }
+        print "time\n";
+    }
+
+    for (1 .. $wait) {
+        print "time\n";
+    }
+    for my $i (0 .. $nodes - 1) {
+        print "$i report\n";
+    }
+    print "time\n";
+    print "exit\n";
+}
+
+sub usage {
+    die "usage: $0 [-n nodes] [-t txns per round] [-r rounds] ",
+        "[-p participants per txn] [-w rounds to wait] [-s seed]\n";
+}
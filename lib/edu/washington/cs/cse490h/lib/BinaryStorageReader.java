@@ -0,0 +1,192 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class that nodes use to read binary data from persistent storage, into
+ * ByteBuffers or as read-only views of the file. The file is mapped into
+ * memory, so reads at any position cost no more than sequential ones, and
+ * views are never copied.
+ *
+ * Reads see the file as it was when it was opened, or last read past its
+ * end: reading past the end maps the file again, to pick up what was
+ * appended since.
+ */
+public class BinaryStorageReader {
+    private final String filename;
+    private final Node n;
+    private ByteBuffer file;
+    private long position;
+
+    BinaryStorageReader(Node n, String filename) throws IOException {
+        this.n = n;
+        this.filename = filename;
+        this.file = n.getStorage().map(n.addr, filename);
+        this.position = 0;
+    }
+
+    /**
+     * @return The size of the file
+     */
+    public long size() {
+        return file.limit();
+    }
+
+    /**
+     * @return The position of the next sequential read
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Move the position of the next sequential read.
+     *
+     * @param newPosition
+     *            The new position
+     */
+    public void position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: "
+                    + newPosition);
+        }
+        position = newPosition;
+    }
+
+    /**
+     * Read bytes at the current position, and move past them.
+     *
+     * @param dst
+     *            Where to put the bytes. As many bytes as it has room for are
+     *            read, unless the file ends first
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int len = read(dst, position);
+        if (len > 0) {
+            position += len;
+        }
+        return len;
+    }
+
+    /**
+     * Read bytes at a position. The current position does not change.
+     *
+     * @param dst
+     *            Where to put the bytes. As many bytes as it has room for are
+     *            read, unless the file ends first
+     * @param at
+     *            Where to read in the file
+     * @return The number of bytes read, or -1 if at is past the end of the
+     *         file
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public int read(ByteBuffer dst, long at) throws IOException {
+        ByteBuffer view = view(at, dst.remaining());
+        if (view == null) {
+            return -1;
+        }
+        int start = dst.position();
+        int len = view.remaining();
+        dst.put(view);
+
+        n.handleDiskReadEvent(StorageEvent.buffers(n, "read", "b:",
+                new ByteBuffer[] { dst }, new int[] { start },
+                new int[] { len }, at));
+        return len;
+    }
+
+    /**
+     * Read bytes at the current position into several buffers, filling each
+     * before moving to the next, and move past them.
+     *
+     * @param dsts
+     *            Where to put the bytes
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public long read(ByteBuffer[] dsts) throws IOException {
+        long at = position;
+        int[] starts = new int[dsts.length];
+        int[] lengths = new int[dsts.length];
+        long total = 0;
+        for (int i = 0; i < dsts.length; ++i) {
+            starts[i] = dsts[i].position();
+            ByteBuffer view = view(position, dsts[i].remaining());
+            if (view == null) {
+                break;
+            }
+            lengths[i] = view.remaining();
+            dsts[i].put(view);
+            position += lengths[i];
+            total += lengths[i];
+        }
+        if (total == 0 && at >= file.limit()) {
+            return -1;
+        }
+
+        n.handleDiskReadEvent(StorageEvent.buffers(n, "read", "b:", dsts,
+                starts, lengths, at));
+        return total;
+    }
+
+    /**
+     * Get a read-only view of a range of the file, without copying it.
+     *
+     * @param at
+     *            Where the range starts in the file
+     * @param length
+     *            The length of the range
+     * @return The view, which is shorter than length if the file ends first,
+     *         or null if at is past the end of the file
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public ByteBuffer slice(long at, int length) throws IOException {
+        ByteBuffer view = view(at, length);
+        if (view == null) {
+            return null;
+        }
+        view = view.slice();
+
+        n.handleDiskReadEvent(StorageEvent.buffers(n, "slice", "b:",
+                new ByteBuffer[] { view }, new int[] { 0 },
+                new int[] { view.remaining() }, at));
+        return view;
+    }
+
+    public void close() {
+        file = null;
+    }
+
+    /**
+     * @return A view of up to length bytes of the file starting at at, or
+     *         null if at is past the end of the file
+     */
+    private ByteBuffer view(long at, int length) throws IOException {
+        if (file == null) {
+            throw new IOException("Reader closed: " + filename);
+        }
+        if (at < 0) {
+            throw new IllegalArgumentException("Negative position: " + at);
+        }
+        if (at + length > file.limit()) {
+            // the file might have grown since it was mapped
+            file = n.getStorage().map(n.addr, filename);
+        }
+        if (at >= file.limit() && length > 0) {
+            return null;
+        }
+
+        ByteBuffer view = file.duplicate();
+        int start = (int) Math.min(at, file.limit());
+        view.position(start);
+        view.limit((int) Math.min(at + length, file.limit()));
+        return view;
+    }
+}
@@ -0,0 +1,122 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class that nodes use to write binary data to persistent storage, straight
+ * from ByteBuffers, without the charset encoding of the
+ * PersistentStorageWriter. As with the other writers, any write can crash
+ * the node before the write is made, and a write of several buffers is a
+ * single write: it either happens whole or not at all.
+ *
+ * Without group commit and on real files, writes go to the file channel
+ * directly from the buffers, so direct buffers are never copied. In group
+ * commit mode (--groupCommit), appended bytes are only durable after sync(),
+ * or once the manager syncs all nodes at the end of a round. Writes at a
+ * position are durable right away, and sync the appended bytes before them
+ * so that they land in order.
+ */
+public class BinaryStorageWriter {
+    private final String filename;
+    private final Node n;
+    private final GroupCommitOutputStream stream;
+
+    BinaryStorageWriter(Node n, String filename, boolean append)
+            throws IOException {
+        this.n = n;
+        this.filename = filename;
+        this.stream = n.openStorageStream(filename, append);
+    }
+
+    /**
+     * Append the remaining bytes of a buffer to the file.
+     *
+     * @param src
+     *            The bytes to write. Its position is moved to its limit
+     * @throws IOException
+     *             If the write fails
+     */
+    public void write(ByteBuffer src) throws IOException {
+        write(new ByteBuffer[] { src });
+    }
+
+    /**
+     * Append the remaining bytes of several buffers to the file, in order,
+     * as a single write. Typically a header and a payload.
+     *
+     * @param srcs
+     *            The bytes to write. Their positions are moved to their
+     *            limits
+     * @throws IOException
+     *             If the write fails
+     */
+    public void write(ByteBuffer... srcs) throws IOException {
+        n.handleDiskWriteEvent(writeEvent("write", srcs, -1));
+
+        stream.write(srcs);
+    }
+
+    /**
+     * Write the remaining bytes of a buffer at a position in the file,
+     * growing the file if needed. The write is durable right away.
+     *
+     * @param src
+     *            The bytes to write. Its position is moved to its limit
+     * @param position
+     *            Where to write in the file
+     * @throws IOException
+     *             If the write fails
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: "
+                    + position);
+        }
+        n.handleDiskWriteEvent(writeEvent("write", new ByteBuffer[] { src },
+                position));
+
+        stream.sync();
+        n.getStorage().write(n.addr, filename, position, src);
+    }
+
+    /**
+     * Make everything appended so far durable. Without group commit, writes
+     * are durable right away and this does nothing. The node can crash before
+     * the sync, in which case the writes since the last sync are lost.
+     *
+     * @throws IOException
+     *             If the writes cannot be made durable
+     */
+    public void sync() throws IOException {
+        if (!MessageLayer.groupCommit) {
+            return;
+        }
+        n.handleDiskWriteEvent("sync()", "sync");
+
+        stream.sync();
+    }
+
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    public boolean delete() throws IOException {
+        n.handleDiskWriteEvent("delete of" + filename, "delete:" + filename);
+
+        close();
+        return n.getStorage().delete(n.addr, filename);
+    }
+
+    private StorageEvent writeEvent(String method, ByteBuffer[] srcs,
+            long position) {
+        int[] starts = new int[srcs.length];
+        int[] lengths = new int[srcs.length];
+        for (int i = 0; i < srcs.length; ++i) {
+            starts[i] = srcs[i].position();
+            lengths[i] = srcs[i].remaining();
+        }
+        return StorageEvent.buffers(n, method, "b:", srcs, starts, lengths,
+                position);
+    }
+}
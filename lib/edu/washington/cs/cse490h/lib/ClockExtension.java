@@ -0,0 +1,169 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * <pre>
+ * Encodes the vector clock that an emulated node attaches to the packets it
+ * sends, and rebuilds the clocks of the packets it receives.
+ *
+ * A clock is sent as sparse (addr, counter) pairs holding only the entries that
+ * changed since the last clock sent on the same link, which is typically one
+ * or two entries. The receiver keeps the last clock it rebuilt for every link
+ * and merges the pairs into it. Every FULL_CLOCK_INTERVAL-th packet on a link,
+ * and every broadcast, carries all the non-zero entries instead.
+ *
+ * Packets carry their sequence number on the link, so that the receiver only
+ * merges pairs in the order they were sent. Once a packet is missing, because
+ * the router dropped it or delayed it behind later ones, the receiver cannot
+ * rebuild the clocks that follow: it gives them no clock at all until the next
+ * full clock arrives, rather than one that is missing entries or has entries
+ * from the future.
+ *
+ * Format:
+ *        sequence number on the link, times 2, plus 1 if full: varint
+ *        number of pairs: varint
+ *        pairs:
+ *                address: 1 byte
+ *                counter: varint
+ * </pre>
+ */
+class ClockExtension {
+	private static final int FULL_CLOCK_INTERVAL = 16;
+
+	// last clock sent to each destination, and the number of packets sent
+	private final int[][] lastSent;
+	private final int[] sentOnLink;
+	// last clock rebuilt for each source, null until a full clock arrives and
+	// after a packet goes missing, and the sequence number expected next
+	private final VectorTime[] lastReceived;
+	private final int[] receivedOnLink;
+
+	ClockExtension() {
+		lastSent = new int[Manager.MAX_ADDRESS + 1][];
+		sentOnLink = new int[Manager.MAX_ADDRESS + 1];
+		lastReceived = new VectorTime[Manager.MAX_ADDRESS + 1];
+		receivedOnLink = new int[Manager.MAX_ADDRESS + 1];
+	}
+
+	/**
+	 * Forget what was sent on every link, so that the next packet on each link
+	 * carries the full clock. Called when the node restarts with a new clock.
+	 */
+	void resetSent() {
+		for (int i = 0; i < lastSent.length; ++i) {
+			lastSent[i] = null;
+			sentOnLink[i] = 0;
+		}
+	}
+
+	/**
+	 * Encode a clock for a packet.
+	 *
+	 * @param clock
+	 *            The sender's clock
+	 * @param dest
+	 *            The destination of the packet
+	 * @return The encoded clock
+	 */
+	byte[] encode(VectorTime clock, int dest) {
+		int seqNum = 0;
+		int[] last = null;
+		if (dest != Manager.BROADCAST_ADDRESS) {
+			seqNum = sentOnLink[dest]++;
+			if (seqNum % FULL_CLOCK_INTERVAL != 0) {
+				last = lastSent[dest];
+			}
+		}
+
+		int[] changed = new int[clock.length()];
+		int count = 0;
+		for (int i = 0; i < clock.length(); ++i) {
+			int value = clock.get(i);
+			if (value != (last == null ? 0 : last[i])) {
+				changed[count++] = i;
+			}
+		}
+
+		try {
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(byteStream);
+			Utility.writeVarint(out, seqNum * 2 + (last == null ? 1 : 0));
+			Utility.writeVarint(out, count);
+			for (int j = 0; j < count; ++j) {
+				out.writeByte(changed[j]);
+				Utility.writeVarint(out, clock.get(changed[j]));
+			}
+			out.flush();
+
+			if (dest != Manager.BROADCAST_ADDRESS) {
+				if (lastSent[dest] == null) {
+					lastSent[dest] = new int[clock.length()];
+				}
+				for (int j = 0; j < count; ++j) {
+					lastSent[dest][changed[j]] = clock.get(changed[j]);
+				}
+			}
+			return byteStream.toByteArray();
+		} catch (IOException e) {
+			// can't happen with a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Rebuild the clock of a packet that just arrived.
+	 *
+	 * @param src
+	 *            The source of the packet
+	 * @param dest
+	 *            The destination of the packet
+	 * @param clockExt
+	 *            The encoded clock carried by the packet
+	 * @return The sender's clock, or null if it cannot be rebuilt because an
+	 *         earlier packet on the link is missing
+	 * @throws IOException
+	 *             If the encoded clock is malformed
+	 */
+	VectorTime decode(int src, int dest, byte[] clockExt) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(clockExt));
+		int header = Utility.readVarint(in);
+		int seqNum = header / 2;
+		boolean full = (header & 1) != 0;
+
+		VectorTime clock;
+		if (full) {
+			clock = new VectorTime(Manager.MAX_ADDRESS);
+		} else if (lastReceived[src] != null && seqNum == receivedOnLink[src]) {
+			clock = lastReceived[src];
+		} else {
+			// the pairs are relative to a clock we never saw
+			lastReceived[src] = null;
+			return null;
+		}
+
+		int count = Utility.readVarint(in);
+		for (int j = 0; j < count; ++j) {
+			int addr = in.readUnsignedByte();
+			int value = Utility.readVarint(in);
+			if (addr >= clock.length()) {
+				throw new IOException("Invalid address in vector clock: " + addr);
+			}
+			clock.updateTo(addr, value);
+		}
+
+		if (dest == Manager.BROADCAST_ADDRESS) {
+			// broadcasts are not part of any link
+			return clock;
+		}
+		// a full clock also resynchronizes the link, even after the sender
+		// restarted and started counting again
+		lastReceived[src] = clock;
+		receivedOnLink[src] = seqNum + 1;
+		return new VectorTime(clock);
+	}
+}
@@ -89,12 +89,12 @@ public class EmulatedNode implements Runnable{
 					synchronized(parent.emulatedNodes) {
 						for(Integer dest: c) {
 							if(dest != addr) {
-								parent.emulatedNodes.get(dest).send(packet);
+								parent.forward(addr, dest, packet);
 							}
 						}
 					}
 				} else {
-					parent.emulatedNodes.get(packet.getDest()).send(packet);
+					parent.forward(addr, packet.getDest(), packet);
 				}
 			}
 		} catch (IOException e) {
@@ -0,0 +1,89 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+
+import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+
+/**
+ * <pre>
+ * Runs several emulated nodes in a single process, one thread per node, with a
+ * LocalRouter in place of the Router. Every node keeps its own Emulator, round
+ * clock and storage directory, exactly as if it were started on its own, but
+ * packets are routed in memory instead of over TCP. This makes it cheap to
+ * emulate many nodes on one machine.
+ *
+ * Node threads are created with a small stack, since a node only ever runs the
+ * emulator loop and the student's handlers.
+ * </pre>
+ */
+public class EmulationCluster {
+	// stack size of the node threads, in bytes
+	private static final long STACK_SIZE = 256 * 1024;
+
+	private final Emulator[] emulators;
+
+	/**
+	 * Create a new cluster. Nodes get addresses 0 to numNodes - 1, and node i
+	 * uses seed + i as its seed.
+	 * 
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param numNodes
+	 *            The number of nodes to start
+	 * @param failureGen
+	 *            How failures should be generated
+	 * @param seed
+	 *            Seed for the RNG. Can be null to use the current time
+	 * @param timeStep
+	 *            The number of milliseconds to wait between rounds
+	 * @param commandFile
+	 *            File containing the list of commands, run by every node
+	 * @throws IOException
+	 *             If the command file cannot be read
+	 * @throws IllegalArgumentException
+	 *             If the arguments provided are invalid
+	 */
+	public EmulationCluster(Class<? extends Node> nodeImpl, int numNodes,
+			FailureLvl failureGen, Long seed, long timeStep, String commandFile)
+	throws IOException, IllegalArgumentException {
+		if (numNodes <= 0 || numNodes > Manager.MAX_ADDRESS) {
+			throw new IllegalArgumentException("Invalid number of nodes: " + numNodes);
+		}
+
+		if (seed == null) {
+			seed = System.currentTimeMillis();
+		}
+
+		LocalRouter router = new LocalRouter();
+		emulators = new Emulator[numNodes];
+		for (int i = 0; i < numNodes; ++i) {
+			emulators[i] = new Emulator(nodeImpl, i, router, failureGen, seed + i, timeStep, commandFile);
+		}
+	}
+
+	/**
+	 * Start all the nodes and wait for them to exit, then exit the process.
+	 */
+	public void start() {
+		Thread[] threads = new Thread[emulators.length];
+		for (int i = 0; i < emulators.length; ++i) {
+			final Emulator emulator = emulators[i];
+			threads[i] = new Thread(null, new Runnable() {
+				public void run() {
+					emulator.start();
+				}
+			}, "Node-" + i, STACK_SIZE);
+			threads[i].start();
+		}
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+			}
+		}
+
+		System.out.println("All " + emulators.length + " nodes exited.");
+		System.exit(0);
+	}
+}
@@ -4,30 +4,54 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Random;
 
 import edu.washington.cs.cse490h.lib.Node.NodeCrashException;
 import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
 
 /**
- * Manager that runs under a single emulated node on the client machine.
+ * Manager that runs under a single emulated node on the client machine, or
+ * under one of the nodes of an EmulationCluster.
  */
 public class Emulator extends Manager {
 	private Node node;
-	private NodeServer server;
+	private NodeTransport server;
 	private int address;
 	private final long timeStep;
+	// if faults are injected by the Router rather than by this emulator
+	private final boolean passThrough;
+
+	// if rounds advance as soon as there is work for them
+	private final boolean adaptiveClock;
+	private final long minRoundTime;
+	// signalled by the NodeServer when a packet arrives
+	private final Object roundLock = new Object();
+	private boolean packetArrived;
+
+	// if replayed rounds run back to back instead of waiting for timeStep
+	private final boolean fastReplay;
+	// if a checkpoint is recorded in the replay output file every round
+	private final boolean replayCheckpoints;
+	private int pktsDelivered;
+
+	// if sent packets carry this node's vector clock
+	private final boolean vectorClocks;
+	private final ClockExtension clocks;
 
 	private final String routerName;
 	private final int routerPort;
+	// set if the node is hosted by an EmulationCluster, null otherwise
+	private LocalRouter localRouter;
 
 	// if the node or server are down
 	private boolean failed;
 	private boolean IOFinished;
+	// if stop() has been called
+	private boolean finished;
 
 	/**
 	 * Base constructor for the Emulator. Does most of the work, but the command
@@ -69,7 +93,6 @@ public class Emulator extends Manager {
 			System.out.print("in replay mode ");
 		}
 		System.out.println("with seed: " + this.seed);
-		Utility.randNumGen = new Random(this.seed);
 
 		this.routerName = routerName;
 		this.routerPort = routerPort;
@@ -108,8 +131,19 @@ public class Emulator extends Manager {
 		vtimes = new HashMap<Integer, VectorTime>();
 
 		failed = false;
+		finished = false;
+		localRouter = null;
 
 		this.timeStep = timeStep;
+		passThrough = MessageLayer.passThrough;
+		adaptiveClock = MessageLayer.adaptiveClock;
+		minRoundTime = MessageLayer.minRoundTime;
+		packetArrived = false;
+		fastReplay = MessageLayer.fastReplay && Replay.isReplaying();
+		replayCheckpoints = MessageLayer.replayCheckpoints;
+		pktsDelivered = 0;
+		vectorClocks = MessageLayer.vectorClocks;
+		clocks = new ClockExtension();
 		setTime(0);
 	}
 
@@ -188,6 +222,42 @@ public class Emulator extends Manager {
 		sortedEvents = commandFileParser.parseFile(commandFile);
 	}
 
+	/**
+	 * Create a new emulator that is hosted by an EmulationCluster, along with
+	 * the other nodes of the cluster, and takes commands through a file.
+	 * Packets are routed in memory by the cluster's LocalRouter, and stopping
+	 * the node ends its thread instead of the process.
+	 * 
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param nodeAddr
+	 *            The address of the node to start up
+	 * @param localRouter
+	 *            The router shared by the nodes of the cluster
+	 * @param failureGen
+	 *            How failures should be generated
+	 * @param seed
+	 *            Seed for the RNG. This can be null if the failure generator is
+	 *            not a RNG
+	 * @param timeStep
+	 *            The number of milliseconds to wait between rounds
+	 * @param commandFile
+	 *            File containing the list of commands
+	 * @throws IOException
+	 *             If the command file cannot be read
+	 * @throws IllegalArgumentException
+	 *             If the arguments provided are invalid
+	 */
+	public Emulator(Class<? extends Node> nodeImpl, int nodeAddr,
+			LocalRouter localRouter, FailureLvl failureGen, Long seed,
+			long timeStep, String commandFile) throws IOException,
+			IllegalArgumentException {
+		this(nodeImpl, nodeAddr, null, -1, failureGen, seed, timeStep, "", "",
+				commandFile);
+
+		this.localRouter = localRouter;
+	}
+
 	/**
 	 * Perform a single emulator time step with a set of events as argument
 	 * 
@@ -203,6 +273,10 @@ public class Emulator extends Manager {
 
 		executeEvents(currentRoundEvents);
 
+		endRound();
+
+		maintainStorage();
+		syncStorage();
 	}
 
 	/**
@@ -210,13 +284,24 @@ public class Emulator extends Manager {
 	 */
 	@Override
 	protected void start() {
+		// the nodes of a cluster run on their own threads, each with the RNG
+		// of its own emulator
+		Utility.setRNG(rng);
+
 		// start the synoptic partial-ordered logger
-		synPartialOrderLogger.start(MessageLayer.synopticPartialOrderLogFilename);
+		String logFilename = MessageLayer.synopticPartialOrderLogFilename;
+		if (localRouter != null && !logFilename.equals("")) {
+			// every node of the cluster gets its own log
+			logFilename += "." + address;
+		}
+		synPartialOrderLogger.start(logFilename);
 
 		startNode();
 
 		if (cmdInputType == InputType.FILE) {
-			while (node != null || failed) {
+			while ((node != null || failed) && !finished) {
+				long roundStart = System.currentTimeMillis();
+
 				if (IOFinished && node != null) {
 					System.err.println("Network I/O thread failed, killing the node...");
 					failNode();
@@ -247,20 +332,23 @@ public class Emulator extends Manager {
 
 				}
 
+				if (finished) {
+					break;
+				}
+
+				checkpoint();
+
 				setTime(now() + 1);
 				if (node != null) {
 					logEventWithNodeField(node, "TIMESTEP time:" + now());
 				}
 
-				try {
-					// We sleep here to give a chance for messages to travel
-					// over the network
-					Thread.sleep(timeStep);
-				} catch (InterruptedException e) {
-				}
+				// We wait here to give a chance for messages to travel over
+				// the network
+				waitForNextRound(roundStart);
 			}
 		} else if (cmdInputType == InputType.USER) {
-			while (node != null || failed) {
+			while ((node != null || failed) && !finished) {
 				if (IOFinished && node != null) {
 					System.err.println("Network I/O thread failed, killing the node...");
 
@@ -272,7 +360,7 @@ public class Emulator extends Manager {
 				if (node == null) {
 					checkRecover();
 
-					if (userControl.compareTo(FailureLvl.CRASH) < 0) {
+					if (userControl.compareTo(FailureLvl.CRASH) < 0 && !fastReplay) {
 						try {
 							// We sleep here to give a chance for messages to
 							// travel
@@ -358,6 +446,12 @@ public class Emulator extends Manager {
 
 				}
 
+				if (finished) {
+					break;
+				}
+
+				checkpoint();
+
 				setTime(now() + 1);
 				if (node != null) {
 					logEventWithNodeField(node, "TIMESTEP time:" + now());
@@ -368,8 +462,18 @@ public class Emulator extends Manager {
 		stop();
 	}
 
+	/**
+	 * Stops the emulator. This exits the process, unless the node is hosted by
+	 * an EmulationCluster, in which case the node is disconnected from the
+	 * cluster and start() returns at the end of the current round.
+	 */
 	@Override
 	protected void stop() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
 		System.out.println(stopString());
 		if (node != null) {
 			System.out.println(node.addr + ": " + node.toString());
@@ -378,10 +482,134 @@ public class Emulator extends Manager {
 			System.out.println("failed");
 		}
 
+		syncAllStorage();
 		synPartialOrderLogger.stop();
+		if (localRouter != null) {
+			killServer();
+			return;
+		}
 		System.exit(0);
 	}
 
+	/**
+	 * Wait between two rounds. With a fixed clock, this sleeps for timeStep ms.
+	 * With an adaptive clock, the next round starts as soon as there is work
+	 * for it: a packet has arrived, a timeout or command is due, or timeStep
+	 * ms have passed since the start of the current round. Either way, a round
+	 * never takes less than minRoundTime ms.
+	 * 
+	 * @param roundStart
+	 *            The time at which the current round started, in ms
+	 */
+	private void waitForNextRound(long roundStart) {
+		if (fastReplay) {
+			// all the inputs come from the replay file
+			return;
+		}
+
+		if (!adaptiveClock) {
+			try {
+				Thread.sleep(timeStep);
+			} catch (InterruptedException e) {
+			}
+			return;
+		}
+
+		long earliest = roundStart + minRoundTime;
+		long deadline = roundStart + timeStep;
+		if (node != null && workDue()) {
+			deadline = earliest;
+		}
+
+		synchronized (roundLock) {
+			while (true) {
+				if (packetArrived) {
+					deadline = earliest;
+				}
+				long now = System.currentTimeMillis();
+				if (now >= deadline) {
+					break;
+				}
+				try {
+					roundLock.wait(deadline - now);
+				} catch (InterruptedException e) {
+				}
+			}
+			packetArrived = false;
+		}
+	}
+
+	/**
+	 * Record a checkpoint of the node's state at the end of the current round
+	 * in the replay output file. When replaying a file that contains
+	 * checkpoints, check the recorded one against the current state instead,
+	 * and stop at the first round where they differ. Does nothing when neither
+	 * applies, since hashing the node's state can be expensive.
+	 */
+	private void checkpoint() {
+		if (!Replay.isReplaying() && !(Replay.replayOut != null && replayCheckpoints)) {
+			return;
+		}
+
+		int stateHash = (node == null) ? 0 : node.toString().hashCode();
+		Packet current = Replay.getCheckpointPacket(now(), stateHash, getPktsSent(), pktsDelivered);
+
+		if (Replay.isReplaying()) {
+			try {
+				Packet recorded = Replay.peekPacket();
+				if (recorded != null && Replay.isCheckpointPacket(recorded)) {
+					Replay.getPacket();
+					if (!Arrays.equals(recorded.getPayload(), current.getPayload())) {
+						System.err.println("Replay diverged at round " + now() + "!");
+						System.err.println("Recorded: " + Replay.checkpointToString(recorded));
+						System.err.println("Replayed: " + Replay.checkpointToString(current));
+						stop();
+						return;
+					}
+				}
+			} catch (CorruptPacketException e) {
+				throw new Replay.ReplayException("Checkpoint packet was corrupted");
+			}
+		}
+
+		if (Replay.replayOut != null && replayCheckpoints) {
+			try {
+				Replay.replayOut.write(current.pack());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Check if the next round has work to do without waiting for the network.
+	 * 
+	 * @return true if there are delayed packets, due timeouts or pending
+	 *         commands, false otherwise
+	 */
+	private boolean workDue() {
+		if (!inTransitMsgs.isEmpty() || !sortedEvents.isEmpty()) {
+			return true;
+		}
+		for (Timeout to : waitingTOs) {
+			if (now() >= to.fireTime) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the NodeServer when it stores a packet, so that an adaptive
+	 * clock waiting for the next round can start it right away.
+	 */
+	protected void packetArrived() {
+		synchronized (roundLock) {
+			packetArrived = true;
+			roundLock.notifyAll();
+		}
+	}
+
 	/******************* Methods to fail or restart a node *******************/
 
 	/**
@@ -399,12 +627,17 @@ public class Emulator extends Manager {
 
 		if (!Replay.isReplaying()) {
 			// start up the server
-			try {
-				server = new NodeServer(routerName, routerPort, address, this);
-			} catch (IOException e) {
-				System.err.println("Error while constructing server");
-				e.printStackTrace();
-				stop();
+			if (localRouter != null) {
+				server = localRouter.connect(address, this);
+			} else {
+				try {
+					server = new NodeServer(routerName, routerPort, address, this);
+				} catch (IOException e) {
+					System.err.println("Error while constructing server");
+					e.printStackTrace();
+					stop();
+					return;
+				}
 			}
 			IOFinished = false;
 		}
@@ -416,10 +649,12 @@ public class Emulator extends Manager {
 			System.err.println("Error while constructing node: " + e);
 			killServer();
 			stop();
+			return;
 		}
 
 		node.init(this, address);
 		vtimes.put(node.addr, new VectorTime(MAX_ADDRESS));
+		clocks.resetSent();
 		logEventWithNodeField(node, "START");
 		failed = false;
 
@@ -463,6 +698,7 @@ public class Emulator extends Manager {
 		}
 
 		logEventWithNodeField(node, "FAILURE");
+		discardStorage(address);
 
 		waitingTOs.clear();
 		node = null;
@@ -488,9 +724,9 @@ public class Emulator extends Manager {
 	}
 
 	@Override
-	protected void checkWriteCrash(Node n, String description) {
+	protected void checkWriteCrash(Node n, StorageEvent event) {
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-			if (Utility.getRNG().nextDouble() < failureRate) {
+			if (rng.nextDouble() < failureRate) {
 				System.out.println("Randomly failing before write");
 				NodeCrashException e = failNode();
 				// This function is called by Node, so we need to rethrow the
@@ -499,7 +735,7 @@ public class Emulator extends Manager {
 			}
 		} else {
 			try {
-				System.out.println("Crash before " + description + "? (y/n)");
+				System.out.println("Crash before " + event.getDescription() + "? (y/n)");
 				String input = Replay.getLine().trim();
 
 				if (input.length() != 0 && input.charAt(0) == 'y') {
@@ -516,13 +752,21 @@ public class Emulator extends Manager {
 	}
 
 	@Override
-	protected void storageWriteEvent(Node node, String description) {
-		logEventWithNodeField(node, "WRITE " + description);
+	protected void storageWriteEvent(Node node, StorageEvent event) {
+		if (isLogging()) {
+			logEventWithNodeField(node, "WRITE " + event.getSynopticDescription());
+		} else {
+			skipEvent(node);
+		}
 	}
 
 	@Override
-	protected void storageReadEvent(Node node, String description) {
-		logEventWithNodeField(node, "READ" + description);
+	protected void storageReadEvent(Node node, StorageEvent event) {
+		if (isLogging()) {
+			logEventWithNodeField(node, "READ" + event.getSynopticDescription());
+		} else {
+			skipEvent(node);
+		}
 	}
 
 	/**
@@ -543,28 +787,24 @@ public class Emulator extends Manager {
 	 */
 	private void checkInTransit(ArrayList<Event> currentRoundEvents) {
 		// Load in all the newly received messages
-		Packet pkt;
+		int first = inTransitMsgs.size();
 		try {
 			if (Replay.isReplaying()) {
-				pkt = Replay.getPacket();
-				if (Replay.isNullPacket(pkt)) {
-					pkt = null;
+				Packet pkt = Replay.getPacket();
+				while (!Replay.isNullPacket(pkt)) {
+					if (Replay.replayOut != null) {
+						Replay.replayOut.write(pkt.pack());
+					}
+					inTransitMsgs.add(pkt);
+					pkt = Replay.getPacket();
 				}
 			} else {
-				pkt = server.getPacket();
-			}
-			while (pkt != null) {
+				// grab everything the server has received in one go
+				server.drainTo(inTransitMsgs);
 				if (Replay.replayOut != null) {
-					Replay.replayOut.write(pkt.pack());
-				}
-				inTransitMsgs.add(pkt);
-				if (Replay.isReplaying()) {
-					pkt = Replay.getPacket();
-					if (Replay.isNullPacket(pkt)) {
-						pkt = null;
+					for (int i = first; i < inTransitMsgs.size(); ++i) {
+						Replay.replayOut.write(inTransitMsgs.get(i).pack());
 					}
-				} else {
-					pkt = server.getPacket();
 				}
 			}
 		} catch (IOException e) {
@@ -579,6 +819,22 @@ public class Emulator extends Manager {
 			}
 		}
 
+		// rebuild the senders' clocks in arrival order, before any packet is
+		// dropped or delayed
+		for (int i = first; i < inTransitMsgs.size(); ++i) {
+			Packet p = inTransitMsgs.get(i);
+			if (p.getClockExtension() != null) {
+				try {
+					VectorTime vtime = clocks.decode(p.getSrc(), p.getDest(), p.getClockExtension());
+					if (vtime != null) {
+						p.setVectorTime(vtime);
+					}
+				} catch (IOException e) {
+					System.err.println("Dropping vector clock of " + p + ": " + e.getMessage());
+				}
+			}
+		}
+
 		if (inTransitMsgs.isEmpty()) {
 			return;
 		}
@@ -587,12 +843,20 @@ public class Emulator extends Manager {
 		ArrayList<Packet> currentPackets = inTransitMsgs;
 		inTransitMsgs = new ArrayList<Packet>();
 
+		if (passThrough) {
+			// The Router already dropped and delayed packets on its links
+			for (Packet p : currentPackets) {
+				currentRoundEvents.add(Event.getDelivery(p));
+			}
+			return;
+		}
+
 		if (userControl.compareTo(FailureLvl.DROP) < 0) { // userControl < DROP
 			// Figure out if we need to drop the packet.
 			Iterator<Packet> iter = currentPackets.iterator();
 		while (iter.hasNext()) {
 			Packet p = iter.next();
-			double rand = Utility.getRNG().nextDouble();
+			double rand = rng.nextDouble();
 			if (rand < dropRate) {
 				System.out.println("Randomly dropping: " + p.toString());
 				logEvent(node, "DROP " + p.toSynopticString(node));
@@ -660,7 +924,7 @@ public class Emulator extends Manager {
 			Iterator<Packet> iter = currentPackets.iterator();
 			while (iter.hasNext()) {
 				Packet p = iter.next();
-				double rand = Utility.getRNG().nextDouble();
+				double rand = rng.nextDouble();
 				// adjust the probability since these are not independent events
 				// Ex: 50% drop rate and 50% delay rate should mean that nothing
 				// gets through
@@ -689,7 +953,7 @@ public class Emulator extends Manager {
 		// See if we should crash.
 		// Failures and restarts specified in the file are deprecated
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-			double rand = Utility.getRNG().nextDouble();
+			double rand = rng.nextDouble();
 			if (rand < failureRate) {
 				currentRoundEvents.add(Event.getFailure(address));
 			}
@@ -714,7 +978,7 @@ public class Emulator extends Manager {
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) { // userControl <
 			// CRASH
 			// make a copy so we don't have concurrent modification exceptions
-			double rand = Utility.getRNG().nextDouble();
+			double rand = rng.nextDouble();
 			if (rand < recoveryRate) {
 				startNode();
 			}
@@ -756,6 +1020,20 @@ public class Emulator extends Manager {
 		waitingTOs.addAll(currentTOs);
 	}
 
+	/**
+	 * Tell the node, if it is up, that the round is over.
+	 */
+	private void endRound() {
+		if (node == null) {
+			return;
+		}
+		try {
+			node.onRoundEnd();
+		} catch (NodeCrashException e) {
+			failNode();
+		}
+	}
+
 	/**
 	 * Reorders and executes all the events for the current round. Note that
 	 * commands can be executed in a different order than they appear in the
@@ -810,7 +1088,7 @@ public class Emulator extends Manager {
 				}
 			} while (doAgain);
 		} else {
-			Collections.shuffle(currentRoundEvents, Utility.getRNG());
+			Collections.shuffle(currentRoundEvents, rng);
 			System.out.println("Executing with order: ");
 			for (Event ev : currentRoundEvents) {
 				System.out.println(ev.toString());
@@ -826,6 +1104,11 @@ public class Emulator extends Manager {
 	 *            The event that should be processed
 	 */
 	private void handleEvent(Event ev) {
+		if (finished) {
+			// the node exited earlier in this round
+			return;
+		}
+
 		switch (ev.t) {
 		case FAILURE:
 			failNode();
@@ -897,6 +1180,10 @@ public class Emulator extends Manager {
 
 		Packet newPacket = new Packet(to, fromNode.addr, protocol, payload);
 		logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
+		if (vectorClocks) {
+			// the clock includes the SEND event
+			newPacket.setClockExtension(clocks.encode(vtimes.get(address), to));
+		}
 		// XXX: broadcasts are one msg here, whereas simulator they are multiple
 		sendToRouter(to, newPacket.pack());
 		return;
@@ -928,10 +1215,15 @@ public class Emulator extends Manager {
 			return;
 		}
 
+		if (pkt.getVectorTime() != null) {
+			// the RECVD event happens after the SEND event
+			vtimes.get(address).updateTo(pkt.getVectorTime());
+		}
 		logEvent(node, "RECVD " + pkt.toSynopticString(node));
 
 		if (pkt.getDest() == address
 				|| pkt.getDest() == Manager.BROADCAST_ADDRESS) {
+			pktsDelivered++;
 			try {
 				node.onReceive(pkt.getSrc(), pkt.getProtocol(),
 						pkt.getPayload());
@@ -0,0 +1,70 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the storage of every node in the directory storage/<addr>/. This is
+ * the backend used by the Emulator, and by the Simulator unless --memStorage
+ * is given.
+ */
+public class FileStorageBackend implements StorageBackend {
+
+    public boolean exists(int addr, String filename) {
+        return new File(Utility.realFilename(addr, filename)).exists();
+    }
+
+    public InputStream openInput(int addr, String filename)
+            throws FileNotFoundException {
+        return new FileInputStream(Utility.realFilename(addr, filename));
+    }
+
+    public OutputStream openOutput(int addr, String filename, boolean append)
+            throws IOException {
+        Utility.mkdirs(addr);
+        return new FileOutputStream(Utility.realFilename(addr, filename),
+                append);
+    }
+
+    public ByteBuffer map(int addr, String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(Utility.realFilename(
+                addr, filename), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void write(int addr, String filename, long position,
+            ByteBuffer src) throws IOException {
+        String realFilename = Utility.realFilename(addr, filename);
+        if (!new File(realFilename).exists()) {
+            throw new FileNotFoundException(realFilename);
+        }
+        RandomAccessFile file = new RandomAccessFile(realFilename, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    public boolean delete(int addr, String filename) {
+        return new File(Utility.realFilename(addr, filename)).delete();
+    }
+}
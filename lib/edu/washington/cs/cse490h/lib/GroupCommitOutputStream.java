@@ -0,0 +1,220 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream underneath the PersistentStorageWriter and
+ * PersistentStorageOutputStream that decides when written bytes become
+ * durable.
+ *
+ * Without group commit, every write goes straight to the file. With group
+ * commit, writes accumulate in memory and are written to the file in one go
+ * by sync(), which is called explicitly by the node, when the buffer grows
+ * past a threshold, or by the manager at the end of a round. If the node
+ * crashes in between, the manager discards the buffered bytes, so they never
+ * reach the file.
+ */
+class GroupCommitOutputStream extends FilterOutputStream {
+    private final Manager manager;
+    private final int addr;
+    private final boolean groupCommit;
+    private final int syncBytes;
+    // bytes written since the last sync, in group commit mode
+    private final PendingBuffer pending;
+    private boolean closed;
+
+    /**
+     * @param manager
+     *            The manager that syncs this stream at the end of rounds
+     * @param addr
+     *            The address of the node that owns the stream
+     * @param out
+     *            The file stream to write to
+     */
+    GroupCommitOutputStream(Manager manager, int addr, OutputStream out) {
+        super(out);
+        this.manager = manager;
+        this.addr = addr;
+        groupCommit = MessageLayer.groupCommit;
+        syncBytes = MessageLayer.groupCommitBytes;
+        pending = new PendingBuffer();
+        closed = false;
+
+        if (groupCommit) {
+            manager.registerStorageStream(addr, this);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (groupCommit) {
+            pending.write(b);
+            syncIfFull();
+        } else {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (groupCommit) {
+            pending.write(b, off, len);
+            syncIfFull();
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Write the remaining bytes of several buffers, in order. Without group
+     * commit and on a real file, this is a single gather write to the file
+     * channel, straight from the buffers.
+     * 
+     * @param srcs
+     *            The buffers to write. Their positions are moved to their
+     *            limits
+     * @throws IOException
+     *             If the write fails
+     */
+    void write(ByteBuffer[] srcs) throws IOException {
+        checkOpen();
+        if (!groupCommit && out instanceof FileOutputStream) {
+            FileChannel channel = ((FileOutputStream) out).getChannel();
+            long remaining = 0;
+            for (ByteBuffer src : srcs) {
+                remaining += src.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(srcs);
+            }
+            return;
+        }
+
+        byte[] chunk = null;
+        for (ByteBuffer src : srcs) {
+            if (src.hasArray()) {
+                write(src.array(), src.arrayOffset() + src.position(), src
+                        .remaining());
+                src.position(src.limit());
+                continue;
+            }
+            if (chunk == null) {
+                chunk = new byte[8192];
+            }
+            while (src.hasRemaining()) {
+                int len = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, len);
+                write(chunk, 0, len);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // buffered bytes only become durable through sync()
+        if (!groupCommit) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Make everything written so far durable.
+     *
+     * @throws IOException
+     *             If the write to the file fails
+     */
+    void sync() throws IOException {
+        checkOpen();
+        if (pending.size() > 0) {
+            pending.writeTo(out);
+            pending.reset();
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The number of bytes written since the last sync, which are not
+     *         in the file yet
+     */
+    int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * Copy bytes written since the last sync, without making them durable.
+     *
+     * @param pos
+     *            Where to start, counting from the first byte written since
+     *            the last sync
+     * @param dst
+     *            The array to copy to
+     * @param off
+     *            Where to copy to in dst
+     * @param len
+     *            How many bytes to copy
+     */
+    void readPending(int pos, byte[] dst, int off, int len) {
+        pending.read(pos, dst, off, len);
+    }
+
+    /**
+     * Throw away the bytes written since the last sync and close the file.
+     * Called by the manager when the node crashes.
+     */
+    void discard() {
+        pending.reset();
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            closed = true;
+            if (groupCommit) {
+                manager.unregisterStorageStream(addr, this);
+            }
+            out.close();
+        }
+    }
+
+    private void syncIfFull() throws IOException {
+        if (pending.size() >= syncBytes) {
+            sync();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream whose bytes can be read in place
+     */
+    private static class PendingBuffer extends ByteArrayOutputStream {
+        void read(int pos, byte[] dst, int off, int len) {
+            if (pos < 0 || len < 0 || pos > count - len) {
+                throw new IndexOutOfBoundsException();
+            }
+            System.arraycopy(buf, pos, dst, off, len);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <pre>
+ * A hashed timing wheel used by the Router to hold delayed packets.
+ *
+ * The wheel is an array of buckets, each covering one tick. A task that is
+ * scheduled d ms in the future lands in bucket (now + d/tick) mod wheelSize,
+ * along with the number of full revolutions it still has to wait. Scheduling
+ * and expiry are O(1), so delaying a packet costs the forwarding path nothing
+ * more than an enqueue.
+ * </pre>
+ */
+class HashedWheelTimer implements Runnable {
+	private final long tickDuration;
+	private final ArrayList<ArrayList<WheelTask>> wheel;
+	// tasks handed over by other threads, moved into the wheel on each tick
+	private final ConcurrentLinkedQueue<WheelTask> newTasks;
+	private long tick;
+	private volatile boolean finished;
+
+	/**
+	 * A task waiting in one of the buckets of the wheel
+	 */
+	private static class WheelTask {
+		private final long deadline;
+		private final Runnable task;
+		private long remainingRounds;
+
+		WheelTask(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * Create and start a new timer wheel.
+	 *
+	 * @param tickDuration
+	 *            The length of one tick, in ms. This is the granularity of the
+	 *            timer.
+	 * @param wheelSize
+	 *            The number of buckets in the wheel
+	 */
+	HashedWheelTimer(long tickDuration, int wheelSize) {
+		if (tickDuration <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+		}
+
+		this.tickDuration = tickDuration;
+		wheel = new ArrayList<ArrayList<WheelTask>>(wheelSize);
+		for (int i = 0; i < wheelSize; ++i) {
+			wheel.add(new ArrayList<WheelTask>());
+		}
+		newTasks = new ConcurrentLinkedQueue<WheelTask>();
+		tick = 0;
+		finished = false;
+
+		Thread t = new Thread(this, "HashedWheelTimer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Run a task after a delay. Tasks with a delay that is not positive are run
+	 * immediately by the calling thread.
+	 *
+	 * @param task
+	 *            The task to run
+	 * @param delay
+	 *            The delay, in ms
+	 */
+	void schedule(Runnable task, long delay) {
+		if (delay <= 0) {
+			task.run();
+			return;
+		}
+		newTasks.add(new WheelTask(System.currentTimeMillis() + delay, task));
+	}
+
+	/**
+	 * Stop the timer. Tasks that have not fired yet are discarded.
+	 */
+	void stop() {
+		finished = true;
+	}
+
+	public void run() {
+		long startTime = System.currentTimeMillis();
+
+		while (!finished) {
+			long nextTick = startTime + (tick + 1) * tickDuration;
+			long sleep = nextTick - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+				}
+				continue;
+			}
+
+			transferNewTasks(startTime);
+			expire(wheel.get((int) (tick % wheel.size())));
+			++tick;
+		}
+	}
+
+	/**
+	 * Move the tasks added since the last tick into their buckets.
+	 *
+	 * @param startTime
+	 *            The time at which the wheel started turning
+	 */
+	private void transferNewTasks(long startTime) {
+		WheelTask task;
+		while ((task = newTasks.poll()) != null) {
+			long ticks = (task.deadline - startTime) / tickDuration;
+			// never schedule into a bucket that has already been passed
+			ticks = Math.max(ticks, tick);
+			task.remainingRounds = (ticks - tick) / wheel.size();
+			wheel.get((int) (ticks % wheel.size())).add(task);
+		}
+	}
+
+	/**
+	 * Run all the tasks in a bucket that are due in the current revolution.
+	 *
+	 * @param bucket
+	 *            The bucket for the current tick
+	 */
+	private void expire(ArrayList<WheelTask> bucket) {
+		Iterator<WheelTask> iter = bucket.iterator();
+		ArrayList<WheelTask> due = new ArrayList<WheelTask>();
+		while (iter.hasNext()) {
+			WheelTask task = iter.next();
+			if (task.remainingRounds <= 0) {
+				iter.remove();
+				due.add(task);
+			} else {
+				task.remainingRounds--;
+			}
+		}
+
+		for (WheelTask task : due) {
+			try {
+				task.task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * <pre>
+ * Small persistent key-value store for nodes, on top of the node's storage.
+ * Nodes get one from Node.getKVStore().
+ *
+ * Every put and delete is appended to a data log (a WriteAheadLog), so each
+ * of them is a single crash point, and an in-memory hash index maps every key
+ * to the record holding its value. get() is a lookup in the index and a read
+ * of one record.
+ *
+ * The index is saved to an index file every INDEX_INTERVAL records, and when
+ * the store is closed. On open, the store loads the index file and replays
+ * only the records after it; if the index file is missing or corrupt, the
+ * whole data log is replayed instead.
+ *
+ * Overwritten and deleted values stay in the data log until it is compacted.
+ * Between rounds, the manager compacts stores whose log holds more garbage
+ * records than live ones: the live values are copied to a new generation of
+ * the data log, an index is written for it, and the generation file is
+ * switched to it before the old generation is deleted. A crash at any point
+ * leaves either the old or the new generation in use, and the files of the
+ * other one are deleted when the store is opened again.
+ *
+ * Files, for a store called name in generation g:
+ *        name.gen: the current generation, 4 bytes
+ *        name.g.*: the data log
+ *        name.index.g: the index
+ *
+ * Format of a data record:
+ *        type (PUT, DELETE): 1 byte
+ *        length of the key: 2 bytes
+ *        key: UTF-8
+ *        value: the rest of the record, for a PUT
+ *
+ * Format of the index:
+ *        generation: 4 bytes
+ *        LSN of the last record covered: 8 bytes
+ *        number of garbage records: 4 bytes
+ *        number of keys: 4 bytes
+ *        keys:
+ *                length of the key: 2 bytes
+ *                key: UTF-8
+ *                LSN of its record: 8 bytes
+ *        CRC32 of everything before: 4 bytes
+ * </pre>
+ */
+public class KVStore {
+    /** Records written between two saves of the index */
+    public static final int INDEX_INTERVAL = 1024;
+
+    /** Garbage records below which the store is never compacted */
+    public static final int COMPACT_MIN_GARBAGE = 256;
+
+    private static final byte PUT = 0;
+    private static final byte DELETE = 1;
+    private static final int RECORD_HEADER = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Node n;
+    private final Manager manager;
+    private final String name;
+
+    private int generation;
+    private WriteAheadLog data;
+    private HashMap<String, Long> index;
+    // records in the data log that are not the current value of a key
+    private int garbage;
+    // records appended since the index was last saved
+    private int sinceIndex;
+    private boolean closed;
+
+    /**
+     * Open a store, loading its index
+     *
+     * @param n
+     *            The node that owns the store
+     * @param manager
+     *            The manager that compacts the store between rounds
+     * @param name
+     *            The name of the store, used as a prefix for its files
+     * @throws IOException
+     *             If the store cannot be read
+     */
+    KVStore(Node n, Manager manager, String name) throws IOException {
+        this.n = n;
+        this.manager = manager;
+        this.name = name;
+        this.closed = false;
+
+        generation = readGeneration();
+        // leftovers of a compaction that crashed before or after the switch
+        deleteGeneration(generation + 1);
+        if (generation > 0) {
+            deleteGeneration(generation - 1);
+        }
+
+        data = n.getWriteAheadLog(dataName(generation));
+        index = new HashMap<String, Long>();
+        garbage = 0;
+        sinceIndex = 0;
+        recover();
+
+        manager.registerKVStore(n.addr, this);
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return The value of the key, or null if it has none
+     * @throws IOException
+     *             If the value cannot be read
+     */
+    public byte[] get(String key) throws IOException {
+        checkOpen();
+        Long lsn = index.get(key);
+        if (lsn == null) {
+            return null;
+        }
+        byte[] record = data.read(lsn);
+        int keyLen = ByteBuffer.wrap(record).getShort(1) & 0xffff;
+        return Arrays.copyOfRange(record, RECORD_HEADER + keyLen,
+                record.length);
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return Whether the key has a value
+     */
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return The keys that have a value. The set cannot be modified
+     */
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Set the value of a key. The node may crash before the value is
+     * written.
+     *
+     * @param key
+     *            The key
+     * @param value
+     *            Its new value
+     * @throws IOException
+     *             If the value cannot be written
+     */
+    public void put(String key, byte[] value) throws IOException {
+        checkOpen();
+        byte[] k = encodeKey(key);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + k.length
+                + value.length);
+        record.put(PUT).putShort((short) k.length).put(k).put(value);
+
+        long lsn = data.append(record.array());
+        if (index.put(key, lsn) != null) {
+            ++garbage;
+        }
+        ++sinceIndex;
+    }
+
+    /**
+     * Remove the value of a key. The node may crash before the removal is
+     * written.
+     *
+     * @param key
+     *            The key
+     * @return Whether the key had a value
+     * @throws IOException
+     *             If the removal cannot be written
+     */
+    public boolean delete(String key) throws IOException {
+        checkOpen();
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        byte[] k = encodeKey(key);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + k.length);
+        record.put(DELETE).putShort((short) k.length).put(k);
+
+        data.append(record.array());
+        index.remove(key);
+        // both the old value and the deletion itself
+        garbage += 2;
+        ++sinceIndex;
+        return true;
+    }
+
+    /**
+     * Make every change so far durable. Without group commit, changes are
+     * durable right away and this does nothing.
+     *
+     * @throws IOException
+     *             If the changes cannot be made durable
+     */
+    public void sync() throws IOException {
+        checkOpen();
+        data.sync();
+    }
+
+    /**
+     * Save the index and close the store.
+     *
+     * @throws IOException
+     *             If the index cannot be written
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (sinceIndex > 0) {
+            saveIndex();
+        }
+        closed = true;
+        data.close();
+        manager.unregisterKVStore(n.addr, this);
+    }
+
+    /**
+     * Called by the manager between rounds: saves the index if enough records
+     * were written since it was last saved, and compacts the data log if it
+     * holds more garbage than live values.
+     *
+     * @throws IOException
+     *             If the store cannot be written
+     */
+    void maintain() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (garbage >= COMPACT_MIN_GARBAGE && garbage > index.size()) {
+            compact();
+        } else if (sinceIndex >= INDEX_INTERVAL) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * Copy the live values to a new generation of the data log and switch to
+     * it.
+     *
+     * @throws IOException
+     *             If the store cannot be written
+     */
+    public void compact() throws IOException {
+        checkOpen();
+        int newGeneration = generation + 1;
+        WriteAheadLog newData = n.getWriteAheadLog(dataName(newGeneration));
+        HashMap<String, Long> newIndex = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> e : index.entrySet()) {
+            newIndex.put(e.getKey(), newData.append(data.read(e.getValue())));
+        }
+        newData.sync();
+        writeIndex(newGeneration, newIndex, newData.last(), 0);
+
+        // the switch: from here on, the new generation is the one in use
+        writeGeneration(newGeneration);
+
+        data.delete();
+        deleteFile(indexName(generation));
+        generation = newGeneration;
+        data = newData;
+        index = newIndex;
+        garbage = 0;
+        sinceIndex = 0;
+    }
+
+    /**
+     * Load the index file, and replay the records after it.
+     */
+    private void recover() throws IOException {
+        long from = data.first();
+        long covered = loadIndex();
+        if (covered != WriteAheadLog.NO_LSN) {
+            from = data.next(covered);
+        }
+
+        for (long lsn = from; lsn != WriteAheadLog.NO_LSN; lsn = data.next(lsn)) {
+            byte[] record = data.read(lsn);
+            int keyLen = ByteBuffer.wrap(record).getShort(1) & 0xffff;
+            String key = new String(record, RECORD_HEADER, keyLen, UTF8);
+            Long old;
+            if (record[0] == PUT) {
+                old = index.put(key, lsn);
+            } else {
+                old = index.remove(key);
+                ++garbage;
+            }
+            if (old != null) {
+                ++garbage;
+            }
+            ++sinceIndex;
+        }
+    }
+
+    /**
+     * Load the index file into the index.
+     *
+     * @return The LSN of the last record it covers, or NO_LSN if there is no
+     *         usable index file and the whole data log must be replayed
+     */
+    private long loadIndex() throws IOException {
+        String indexName = indexName(generation);
+        if (!n.getStorage().exists(n.addr, indexName)) {
+            return WriteAheadLog.NO_LSN;
+        }
+
+        byte[] bytes = readFile(indexName);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (bytes.length < 24
+                || buf.getInt(bytes.length - 4) != checksum(bytes,
+                        bytes.length - 4)) {
+            System.err.println("Ignoring corrupt index " + indexName);
+            return WriteAheadLog.NO_LSN;
+        }
+
+        long covered = buf.getLong(4);
+        long last = data.last();
+        if (buf.getInt(0) != generation || covered == WriteAheadLog.NO_LSN
+                || last == WriteAheadLog.NO_LSN || covered > last) {
+            // the index covers records that never became durable
+            return WriteAheadLog.NO_LSN;
+        }
+
+        buf.position(12);
+        garbage = buf.getInt();
+        int count = buf.getInt();
+        for (int i = 0; i < count; ++i) {
+            int keyLen = buf.getShort() & 0xffff;
+            String key = new String(bytes, buf.position(), keyLen, UTF8);
+            buf.position(buf.position() + keyLen);
+            index.put(key, buf.getLong());
+        }
+        return covered;
+    }
+
+    private void saveIndex() throws IOException {
+        // the records the index refers to must be durable before it is
+        data.sync();
+        writeIndex(generation, index, data.last(), garbage);
+        sinceIndex = 0;
+    }
+
+    private void writeIndex(int gen, HashMap<String, Long> idx, long covered,
+            int garbageRecords) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(gen);
+        out.writeLong(covered);
+        out.writeInt(garbageRecords);
+        out.writeInt(idx.size());
+        for (Map.Entry<String, Long> e : idx.entrySet()) {
+            byte[] k = encodeKey(e.getKey());
+            out.writeShort(k.length);
+            out.write(k);
+            out.writeLong(e.getValue());
+        }
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        out.writeInt(checksum(body, body.length));
+
+        writeFile(indexName(gen), bytes.toByteArray());
+    }
+
+    private int readGeneration() throws IOException {
+        String genName = name + ".gen";
+        if (!n.getStorage().exists(n.addr, genName)) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(n.getStorage().openInput(
+                n.addr, genName));
+        try {
+            return in.readInt();
+        } catch (EOFException e) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeGeneration(int gen) throws IOException {
+        writeFile(name + ".gen", ByteBuffer.allocate(4).putInt(gen).array());
+    }
+
+    /**
+     * Delete the data log and index of a generation that is not in use.
+     */
+    private void deleteGeneration(int gen) throws IOException {
+        String dataName = dataName(gen);
+        if (n.getStorage().exists(n.addr, dataName + ".head")
+                || n.getStorage().exists(n.addr, dataName + ".0")) {
+            n.getWriteAheadLog(dataName).delete();
+        }
+        deleteFile(indexName(gen));
+    }
+
+    /**
+     * Replace the contents of a file in a single write.
+     */
+    private void writeFile(String filename, byte[] contents)
+            throws IOException {
+        n.handleDiskWriteEvent("write of " + filename, "create:" + filename);
+        GroupCommitOutputStream out = n.openStorageStream(filename, false);
+        out.write(contents);
+        out.close();
+    }
+
+    private byte[] readFile(String filename) throws IOException {
+        InputStream in = n.getStorage().openInput(n.addr, filename);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                bytes.write(buf, 0, len);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void deleteFile(String filename) {
+        if (n.getStorage().exists(n.addr, filename)) {
+            n.handleDiskWriteEvent("delete of " + filename, "delete:"
+                    + filename);
+            n.getStorage().delete(n.addr, filename);
+        }
+    }
+
+    private static byte[] encodeKey(String key) {
+        byte[] k = key.getBytes(UTF8);
+        if (k.length > 0xffff) {
+            throw new IllegalArgumentException("Key too long: " + k.length
+                    + " bytes");
+        }
+        return k;
+    }
+
+    private static int checksum(byte[] b, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, len);
+        return (int) crc.getValue();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Store closed: " + name);
+        }
+    }
+
+    private String dataName(int gen) {
+        return name + "." + gen;
+    }
+
+    private String indexName(int gen) {
+        return name + ".index." + gen;
+    }
+}
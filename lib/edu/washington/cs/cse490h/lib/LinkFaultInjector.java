@@ -0,0 +1,247 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * <pre>
+ * Fault injection stage on the Router's forwarding path. Every forwarded
+ * packet is run through the profile of its (src, dest) link, which decides
+ * whether the packet is dropped and how long it is held before being handed to
+ * the destination. Held packets wait in a HashedWheelTimer, so the delay costs
+ * neither the sending nor the receiving node any work.
+ *
+ * Link file format, one link per line:
+ *	[// | #] <comment>  -- any line starting with // or # is ignored
+ *	src dest drop latency reorder
+ *		src, dest -- virtual addresses, or * to match any address
+ *		drop      -- probability that a packet is dropped
+ *		latency   -- N (constant), min-max (uniform) or exp:mean (exponential), in ms
+ *		reorder   -- probability that a packet is held back so later packets overtake it
+ *
+ * More specific lines take precedence: src dest, then src *, then * dest,
+ * then * *, then the defaults given on the Router command line.
+ * </pre>
+ */
+class LinkFaultInjector {
+	private static final int WILDCARD = -1;
+	private static final int WHEEL_SIZE = 512;
+
+	private final HashMap<Long, LinkProfile> links;
+	private final LinkProfile defaultProfile;
+	private final long reorderDelay;
+	private final Random rand;
+	private final HashedWheelTimer timer;
+
+	/**
+	 * Fault profile of a single link.
+	 */
+	static class LinkProfile {
+		private final double dropRate;
+		private final double reorderRate;
+		private final long minLatency;
+		private final long maxLatency;
+		// if positive, latency is exponentially distributed with this mean
+		private final double meanLatency;
+
+		LinkProfile(double dropRate, long minLatency, long maxLatency, double meanLatency, double reorderRate) {
+			if (dropRate < 0 || dropRate > 1 || reorderRate < 0 || reorderRate > 1) {
+				throw new IllegalArgumentException("Probabilities must be between 0 and 1");
+			}
+			if (minLatency < 0 || maxLatency < minLatency || meanLatency < 0) {
+				throw new IllegalArgumentException("Invalid latency range: " + minLatency + "-" + maxLatency);
+			}
+
+			this.dropRate = dropRate;
+			this.minLatency = minLatency;
+			this.maxLatency = maxLatency;
+			this.meanLatency = meanLatency;
+			this.reorderRate = reorderRate;
+		}
+
+		/**
+		 * @return A latency sample from this link's distribution, in ms
+		 */
+		long sampleLatency(Random rand) {
+			if (meanLatency > 0) {
+				return (long) (-meanLatency * Math.log(1 - rand.nextDouble()));
+			}
+			if (maxLatency == minLatency) {
+				return minLatency;
+			}
+			return minLatency + (long) (rand.nextDouble() * (maxLatency - minLatency + 1));
+		}
+
+		@Override
+		public String toString() {
+			String latency;
+			if (meanLatency > 0) {
+				latency = "exp:" + meanLatency;
+			} else {
+				latency = minLatency + "-" + maxLatency;
+			}
+			return "drop: " + dropRate + " latency: " + latency + " reorder: " + reorderRate;
+		}
+	}
+
+	/**
+	 * Create a new fault injector.
+	 *
+	 * @param defaultProfile
+	 *            The profile of links that are not listed in the link file
+	 * @param linkFilename
+	 *            File with per-link profiles. Can be empty if there is none
+	 * @param reorderDelay
+	 *            How long, in ms, a reordered packet is held back in addition to
+	 *            its latency
+	 * @param tickDuration
+	 *            Granularity of the timer wheel, in ms
+	 * @param seed
+	 *            Seed for the random number generator
+	 * @throws IOException
+	 *             If the link file cannot be read
+	 * @throws IllegalArgumentException
+	 *             If the link file is malformed
+	 */
+	LinkFaultInjector(LinkProfile defaultProfile, String linkFilename, long reorderDelay, long tickDuration, long seed)
+	throws IOException, IllegalArgumentException {
+		this.defaultProfile = defaultProfile;
+		this.reorderDelay = reorderDelay;
+		links = new HashMap<Long, LinkProfile>();
+		rand = new Random(seed);
+
+		if (!linkFilename.equals("")) {
+			parseLinkFile(linkFilename);
+		}
+
+		timer = new HashedWheelTimer(tickDuration, WHEEL_SIZE);
+	}
+
+	/**
+	 * Run a packet through the profile of its link.
+	 *
+	 * @param src
+	 *            The address of the node that sent the packet
+	 * @param dest
+	 *            The address of the node that the packet is forwarded to
+	 * @param packet
+	 *            The packet being forwarded
+	 * @param delivery
+	 *            Hands the packet to the destination. Run by the timer thread
+	 *            for delayed packets, and by the caller otherwise.
+	 */
+	void forward(int src, int dest, Packet packet, Runnable delivery) {
+		LinkProfile link = getProfile(src, dest);
+
+		if (rand.nextDouble() < link.dropRate) {
+			System.out.println("Router dropping: " + packet);
+			return;
+		}
+
+		long delay = link.sampleLatency(rand);
+		if (rand.nextDouble() < link.reorderRate) {
+			System.out.println("Router reordering: " + packet);
+			delay += reorderDelay;
+		}
+
+		timer.schedule(delivery, delay);
+	}
+
+	/**
+	 * Stop the timer thread. Packets that are still held are lost.
+	 */
+	void stop() {
+		timer.stop();
+	}
+
+	/**
+	 * Find the most specific profile for a link.
+	 */
+	private LinkProfile getProfile(int src, int dest) {
+		LinkProfile link = links.get(linkKey(src, dest));
+		if (link == null) {
+			link = links.get(linkKey(src, WILDCARD));
+		}
+		if (link == null) {
+			link = links.get(linkKey(WILDCARD, dest));
+		}
+		if (link == null) {
+			link = links.get(linkKey(WILDCARD, WILDCARD));
+		}
+		if (link == null) {
+			link = defaultProfile;
+		}
+		return link;
+	}
+
+	private static long linkKey(int src, int dest) {
+		return ((long) src << 32) | (dest & 0xffffffffL);
+	}
+
+	/**
+	 * Read the per-link profiles.
+	 */
+	private void parseLinkFile(String filename) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.equals("") || line.startsWith("//") || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] cols = line.split("\\s+");
+				if (cols.length != 5) {
+					throw new IllegalArgumentException("Malformed link: " + line);
+				}
+
+				try {
+					int src = parseAddress(cols[0]);
+					int dest = parseAddress(cols[1]);
+					double drop = Double.parseDouble(cols[2]);
+					double reorder = Double.parseDouble(cols[4]);
+					links.put(linkKey(src, dest), parseProfile(drop, cols[3], reorder));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Malformed link: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static int parseAddress(String s) {
+		if (s.equals("*")) {
+			return WILDCARD;
+		}
+		int addr = Integer.parseInt(s);
+		if (!Packet.validAddress(addr)) {
+			throw new IllegalArgumentException("Invalid address in link file: " + s);
+		}
+		return addr;
+	}
+
+	/**
+	 * Build a profile from a latency spec: N, min-max or exp:mean.
+	 */
+	static LinkProfile parseProfile(double drop, String latency, double reorder) {
+		if (latency.startsWith("exp:")) {
+			double mean = Double.parseDouble(latency.substring(4));
+			return new LinkProfile(drop, 0, 0, mean, reorder);
+		}
+
+		int dash = latency.indexOf('-');
+		if (dash > 0) {
+			long min = Long.parseLong(latency.substring(0, dash));
+			long max = Long.parseLong(latency.substring(dash + 1));
+			return new LinkProfile(drop, min, max, 0, reorder);
+		}
+
+		long constant = Long.parseLong(latency);
+		return new LinkProfile(drop, constant, constant, 0, reorder);
+	}
+}
@@ -0,0 +1,103 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
+
+/**
+ * In-memory counterpart of the NodeServer. Packets are handed to a LocalRouter
+ * in the same process instead of being written to a socket.
+ */
+public class LocalNodeServer extends NodeTransport {
+	private final LocalRouter router;
+	private final int address;
+	private Emulator parent;
+	// written by the threads of other nodes, drained by the emulator thread
+	private final ConcurrentLinkedQueue<Packet> packetsReceived;
+	private volatile boolean finished;
+
+	/**
+	 * Creates a new LocalNodeServer. Use LocalRouter.connect instead.
+	 * 
+	 * @param router
+	 *            The router that this server is connected to
+	 * @param nodeAddr
+	 *            The address of the associated node
+	 * @param parent
+	 *            The emulator that this server is associated to
+	 */
+	LocalNodeServer(LocalRouter router, int nodeAddr, Emulator parent) {
+		this.router = router;
+		this.address = nodeAddr;
+		this.parent = parent;
+		packetsReceived = new ConcurrentLinkedQueue<Packet>();
+		finished = false;
+	}
+
+	@Override
+	protected Packet getPacket() {
+		return packetsReceived.poll();
+	}
+
+	@Override
+	protected int drainTo(List<Packet> list) {
+		int count = 0;
+		Packet packet;
+		while ((packet = packetsReceived.poll()) != null) {
+			list.add(packet);
+			++count;
+		}
+		return count;
+	}
+
+	@Override
+	protected void send(byte[] pkt) {
+		if (finished) {
+			return;
+		}
+
+		try {
+			router.route(address, Packet.unpack(pkt));
+		} catch (CorruptPacketException e) {
+			System.err.println("Error while routing packet from " + address);
+		}
+	}
+
+	/**
+	 * Store a packet to be fetched by the emulator later. Called by the router.
+	 * 
+	 * @param packet
+	 *            The packet to store
+	 */
+	void storePacket(Packet packet) {
+		packetsReceived.add(packet);
+
+		// parent is set to null by close()
+		Emulator emulator = parent;
+		if (emulator != null) {
+			emulator.packetArrived();
+		}
+	}
+
+	@Override
+	protected void close() {
+		finished = true;
+
+		// hand back all the in-transit messages
+		ArrayList<Packet> queue = new ArrayList<Packet>();
+		drainTo(queue);
+		queue.addAll(parent.inTransitMsgs);
+		router.disconnect(this, queue);
+
+		parent = null;
+	}
+
+	/**
+	 * @return The virtual address of the associated node
+	 */
+	int getAddr() {
+		return address;
+	}
+}
@@ -0,0 +1,130 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <pre>
+ * In-memory counterpart of the Router, used when the emulated nodes of a
+ * cluster run as threads of one process (see EmulationCluster). Packets are
+ * handed from one LocalNodeServer to another without touching a socket, and
+ * packets for failed nodes are queued until the node restarts, just like the
+ * Router does.
+ * </pre>
+ */
+public class LocalRouter {
+	private final LocalNodeContainer[] nodes;
+
+	/**
+	 * Create a new, empty LocalRouter
+	 */
+	public LocalRouter() {
+		nodes = new LocalNodeContainer[Manager.MAX_ADDRESS + 1];
+	}
+
+	/**
+	 * Connect an emulated node to the router. Packets that were queued while
+	 * the node was down are delivered to the new server.
+	 * 
+	 * @param address
+	 *            The virtual address of the node
+	 * @param parent
+	 *            The emulator of the node
+	 * @return The transport through which the node sends and receives packets
+	 */
+	protected LocalNodeServer connect(int address, Emulator parent) {
+		LocalNodeServer server = new LocalNodeServer(this, address, parent);
+		getContainer(address).connect(server);
+		return server;
+	}
+
+	/**
+	 * Called by a server when its node quits
+	 * 
+	 * @param server
+	 *            The server that is closing
+	 * @param queue
+	 *            The undelivered packets to queue until the node restarts
+	 */
+	protected void disconnect(LocalNodeServer server, Collection<Packet> queue) {
+		getContainer(server.getAddr()).disconnect(server, queue);
+	}
+
+	/**
+	 * Route a packet sent by a node
+	 * 
+	 * @param src
+	 *            The virtual address of the node that sent the packet
+	 * @param packet
+	 *            The packet to route
+	 */
+	protected void route(int src, Packet packet) {
+		if (packet.getDest() == Manager.BROADCAST_ADDRESS) {
+			for (int dest = 0; dest < nodes.length; ++dest) {
+				if (dest != src && dest != Manager.BROADCAST_ADDRESS) {
+					LocalNodeContainer container = getExistingContainer(dest);
+					if (container != null) {
+						container.send(packet);
+					}
+				}
+			}
+		} else {
+			getContainer(packet.getDest()).send(packet);
+		}
+	}
+
+	private synchronized LocalNodeContainer getContainer(int address) {
+		if (nodes[address] == null) {
+			nodes[address] = new LocalNodeContainer();
+		}
+		return nodes[address];
+	}
+
+	private synchronized LocalNodeContainer getExistingContainer(int address) {
+		return nodes[address];
+	}
+}
+
+/**
+ * Holds either the server of a running node, or the packets queued for a
+ * failed one.
+ */
+class LocalNodeContainer {
+	private LocalNodeServer server;
+	private List<Packet> downQueue;
+
+	LocalNodeContainer() {
+		server = null;
+		downQueue = new LinkedList<Packet>();
+	}
+
+	synchronized void connect(LocalNodeServer server) {
+		this.server = server;
+
+		for (Packet pkt : downQueue) {
+			server.storePacket(pkt);
+		}
+		downQueue.clear();
+	}
+
+	synchronized void disconnect(LocalNodeServer server, Collection<Packet> queue) {
+		if (this.server != server) {
+			// the node has already restarted with a new server
+			return;
+		}
+		this.server = null;
+
+		if (queue != null) {
+			downQueue.addAll(queue);
+		}
+	}
+
+	synchronized void send(Packet p) {
+		if (server != null) {
+			server.storePacket(p);
+		} else {
+			downQueue.add(p);
+		}
+	}
+}
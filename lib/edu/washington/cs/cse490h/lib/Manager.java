@@ -1,5 +1,6 @@
 package edu.washington.cs.cse490h.lib;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -8,6 +9,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Random;
 
 /**
  * Abstract class defining generic routines for running network code under the
@@ -23,6 +25,9 @@ public abstract class Manager {
     protected final double delayRate;
 
     protected long seed;
+    // seeded with seed, and used for every random choice of this manager and
+    // its nodes
+    protected Random rng;
     protected final Class<? extends Node> nodeImpl;
 
     // TODO: migrate to using Node.vtime instead of this once you figure out
@@ -38,6 +43,19 @@ public abstract class Manager {
 
     protected SynopticLogger synPartialOrderLogger = new SynopticLogger();
 
+    // where the nodes' persistent storage lives
+    private StorageBackend storage = new FileStorageBackend();
+
+    // Group commit: storage streams with writes that may not be durable yet,
+    // by node address
+    private final HashMap<Integer, ArrayList<GroupCommitOutputStream>> storageStreams =
+            new HashMap<Integer, ArrayList<GroupCommitOutputStream>>();
+    private int roundsSinceSync = 0;
+
+    // key-value stores that are maintained between rounds, by node address
+    private final HashMap<Integer, ArrayList<KVStore>> kvStores =
+            new HashMap<Integer, ArrayList<KVStore>>();
+
     protected FailureLvl userControl;
 
     protected enum FailureLvl {
@@ -140,8 +158,9 @@ public abstract class Manager {
 
         if (!replayInputFilename.equals("")) {
             // initialize the replay input file and grab the old seed
-            this.seed = Replay.init(new DataInputStream(new FileInputStream(
-                    replayInputFilename)), true);
+            this.seed = Replay.init(new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(
+                            replayInputFilename))), true);
         } else {
             // make a new seed and initialize keyboard input
             Replay.init(null, false);
@@ -155,6 +174,14 @@ public abstract class Manager {
         if (Replay.replayOut != null) {
             Replay.replayOut.writeLong(this.seed);
         }
+        rng = new Random(this.seed);
+    }
+
+    /**
+     * @return The number of packets sent so far
+     */
+    protected int getPktsSent() {
+        return pktsSent;
     }
 
     /**
@@ -250,11 +277,11 @@ public abstract class Manager {
      * 
      * @param n
      *            The node that is trying to write to the disc.
-     * @param description
-     *            The description of the write so the user knows what caused the
+     * @param event
+     *            The write, described to the user so they know what caused the
      *            crash
      */
-    protected abstract void checkWriteCrash(Node n, String description);
+    protected abstract void checkWriteCrash(Node n, StorageEvent event);
 
     /**
      * Set the current time. This should be used at the beginning, and after
@@ -273,10 +300,10 @@ public abstract class Manager {
      * 
      * @param node
      *            The node that is trying to write
-     * @param description
-     *            The description of the write
+     * @param event
+     *            The write
      */
-    protected abstract void storageWriteEvent(Node node, String description);
+    protected abstract void storageWriteEvent(Node node, StorageEvent event);
 
     /**
      * Triggered whenever the node attempts to read from the local storage
@@ -284,10 +311,167 @@ public abstract class Manager {
      * 
      * @param node
      *            The node that is trying to read
-     * @param description
-     *            The description of the read
+     * @param event
+     *            The read
+     */
+    protected abstract void storageReadEvent(Node node, StorageEvent event);
+
+    /**
+     * @return The backend that holds the nodes' persistent storage
+     */
+    protected StorageBackend getStorage() {
+        return storage;
+    }
+
+    /**
+     * Change the backend that holds the nodes' persistent storage. This should
+     * be done before any node is started.
+     * 
+     * @param storage
+     *            The new backend
+     */
+    protected void setStorage(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Register a group commit stream, so that it is synced at the end of
+     * rounds and discarded if its node crashes.
+     * 
+     * @param addr
+     *            The address of the node that owns the stream
+     * @param stream
+     *            The stream to register
+     */
+    void registerStorageStream(int addr, GroupCommitOutputStream stream) {
+        ArrayList<GroupCommitOutputStream> streams = storageStreams.get(addr);
+        if (streams == null) {
+            streams = new ArrayList<GroupCommitOutputStream>();
+            storageStreams.put(addr, streams);
+        }
+        streams.add(stream);
+    }
+
+    /**
+     * Forget about a group commit stream that has been closed.
+     * 
+     * @param addr
+     *            The address of the node that owns the stream
+     * @param stream
+     *            The stream to unregister
+     */
+    void unregisterStorageStream(int addr, GroupCommitOutputStream stream) {
+        ArrayList<GroupCommitOutputStream> streams = storageStreams.get(addr);
+        if (streams != null) {
+            streams.remove(stream);
+        }
+    }
+
+    /**
+     * Called at the end of every round. In group commit mode, makes the writes
+     * of all the nodes durable every MessageLayer.groupCommitRounds rounds.
+     */
+    protected void syncStorage() {
+        if (storageStreams.isEmpty()
+                || ++roundsSinceSync < MessageLayer.groupCommitRounds) {
+            return;
+        }
+        roundsSinceSync = 0;
+        syncAllStorage();
+    }
+
+    /**
+     * Make the writes of all the nodes durable. Called at the end of rounds
+     * and when the manager stops.
+     */
+    protected void syncAllStorage() {
+        for (ArrayList<GroupCommitOutputStream> streams : storageStreams.values()) {
+            for (GroupCommitOutputStream stream : streams) {
+                try {
+                    stream.sync();
+                } catch (IOException e) {
+                    System.err.println("Error while syncing storage: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a node crashes. Its writes that are not durable yet are
+     * lost, and its key-value stores are no longer maintained.
+     * 
+     * @param addr
+     *            The address of the node that crashed
+     */
+    protected void discardStorage(int addr) {
+        ArrayList<GroupCommitOutputStream> streams = storageStreams.remove(addr);
+        if (streams != null) {
+            for (GroupCommitOutputStream stream : streams) {
+                stream.discard();
+            }
+        }
+        kvStores.remove(addr);
+    }
+
+    /**
+     * Register a key-value store, so that it is maintained between rounds.
+     * 
+     * @param addr
+     *            The address of the node that owns the store
+     * @param store
+     *            The store to register
+     */
+    void registerKVStore(int addr, KVStore store) {
+        ArrayList<KVStore> stores = kvStores.get(addr);
+        if (stores == null) {
+            stores = new ArrayList<KVStore>();
+            kvStores.put(addr, stores);
+        }
+        stores.add(store);
+    }
+
+    /**
+     * Forget about a key-value store that has been closed.
+     * 
+     * @param addr
+     *            The address of the node that owns the store
+     * @param store
+     *            The store to unregister
+     */
+    void unregisterKVStore(int addr, KVStore store) {
+        ArrayList<KVStore> stores = kvStores.get(addr);
+        if (stores != null) {
+            stores.remove(store);
+        }
+    }
+
+    /**
+     * Called at the end of every round, before syncStorage(). Saves the
+     * indexes of the key-value stores and compacts them when needed. A node
+     * can crash in the middle, like during any other write.
      */
-    protected abstract void storageReadEvent(Node node, String description);
+    protected void maintainStorage() {
+        if (kvStores.isEmpty()) {
+            return;
+        }
+        // a crash removes the node's stores from the map
+        for (Integer addr : new ArrayList<Integer>(kvStores.keySet())) {
+            ArrayList<KVStore> stores = kvStores.get(addr);
+            if (stores == null) {
+                continue;
+            }
+            try {
+                for (KVStore store : new ArrayList<KVStore>(stores)) {
+                    store.maintain();
+                }
+            } catch (Node.NodeCrashException e) {
+                // the node crashed, and has been failed by checkWriteCrash
+            } catch (IOException e) {
+                System.err.println("Error while maintaining storage of node "
+                        + addr + ": " + e);
+            }
+        }
+    }
 
     /**
      * Logs an event string for a node to synoptic partial log without a node
@@ -308,4 +492,23 @@ public abstract class Manager {
         vtime.step(nodeAddr);
         synPartialOrderLogger.logEvent("" + vtime.toString(), eventStr);
     }
+
+    /**
+     * @return Whether events are written to a synoptic log. If not, their
+     *         descriptions need not be built.
+     */
+    protected boolean isLogging() {
+        return synPartialOrderLogger.isLogging();
+    }
+
+    /**
+     * Account for an event that is not logged: the node's vector time steps
+     * exactly as it would in logEvent.
+     * 
+     * @param node
+     *            The node the event happened at
+     */
+    protected void skipEvent(Node node) {
+        vtimes.get(node.addr).step(node.addr);
+    }
 }
@@ -0,0 +1,227 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <pre>
+ * Keeps the storage of every node in memory, as one byte array per file. Used
+ * by the Simulator with --memStorage, so that simulations do not touch the
+ * disc and several of them can run in the same directory.
+ *
+ * The storage can be forked: the fork starts with the same files, and from
+ * then on both backends change independently. Files are shared until one of
+ * the backends writes to them, so forking costs nothing more than copying
+ * the file tables. A fork that is kept aside is a snapshot, and restore()
+ * rolls the storage back to it.
+ *
+ * Readers get the bytes of a file as they were when they opened it. Appends
+ * go past what any reader can see, so only writes over bytes that a reader
+ * was handed copy the file.
+ * </pre>
+ */
+public class MemoryStorageBackend implements StorageBackend {
+    private HashMap<Integer, HashMap<String, MemoryFile>> nodes;
+
+    /**
+     * Contents of a single file. A file that is shared by several backends is
+     * copied before it is modified.
+     */
+    private static class MemoryFile {
+        private byte[] data;
+        private int length;
+        private boolean shared;
+        // how many bytes of data readers were handed, which must not change
+        private int readLength;
+
+        MemoryFile() {
+            data = new byte[64];
+            length = 0;
+            shared = false;
+            readLength = 0;
+        }
+
+        MemoryFile(MemoryFile other) {
+            data = new byte[Math.max(64, other.length)];
+            System.arraycopy(other.data, 0, data, 0, other.length);
+            length = other.length;
+            shared = false;
+            readLength = 0;
+        }
+
+        /**
+         * Hand the bytes of the file to a reader
+         */
+        ByteBuffer read() {
+            readLength = Math.max(readLength, length);
+            return ByteBuffer.wrap(data, 0, length);
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+
+        void write(int position, ByteBuffer src) {
+            int len = src.remaining();
+            if (position < readLength) {
+                // leave the readers the bytes they were handed
+                data = Arrays.copyOf(data, data.length);
+                readLength = 0;
+            }
+            ensureCapacity(position + len);
+            src.get(data, position, len);
+            // new arrays are zeroed, so a gap before position reads as zeroes
+            length = Math.max(length, position + len);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > data.length) {
+                byte[] bigger = new byte[Math.max(data.length * 2, capacity)];
+                System.arraycopy(data, 0, bigger, 0, length);
+                data = bigger;
+            }
+        }
+    }
+
+    /**
+     * Create a new, empty storage
+     */
+    public MemoryStorageBackend() {
+        nodes = new HashMap<Integer, HashMap<String, MemoryFile>>();
+    }
+
+    /**
+     * @return A new backend that starts with the same files as this one
+     */
+    public MemoryStorageBackend fork() {
+        MemoryStorageBackend fork = new MemoryStorageBackend();
+        fork.nodes = shareFiles();
+        return fork;
+    }
+
+    /**
+     * Roll the storage back to the files of a snapshot. The snapshot itself
+     * is left untouched, so it can be restored again.
+     *
+     * @param snapshot
+     *            A fork of this backend
+     */
+    public void restore(MemoryStorageBackend snapshot) {
+        nodes = snapshot.shareFiles();
+    }
+
+    /**
+     * Copy the file tables, marking every file as shared.
+     */
+    private HashMap<Integer, HashMap<String, MemoryFile>> shareFiles() {
+        HashMap<Integer, HashMap<String, MemoryFile>> copy = new HashMap<Integer, HashMap<String, MemoryFile>>();
+        for (Map.Entry<Integer, HashMap<String, MemoryFile>> node : nodes.entrySet()) {
+            for (MemoryFile f : node.getValue().values()) {
+                f.shared = true;
+            }
+            copy.put(node.getKey(), new HashMap<String, MemoryFile>(node.getValue()));
+        }
+        return copy;
+    }
+
+    public boolean exists(int addr, String filename) {
+        return getFile(addr, filename) != null;
+    }
+
+    public InputStream openInput(int addr, String filename)
+            throws FileNotFoundException {
+        MemoryFile f = getFile(addr, filename);
+        if (f == null) {
+            throw new FileNotFoundException(Utility.realFilename(addr, filename)
+                    + " (No such file in memory storage)");
+        }
+        // later writes to the file are not visible to this stream
+        ByteBuffer buf = f.read();
+        return new ByteArrayInputStream(buf.array(), 0, buf.limit());
+    }
+
+    public OutputStream openOutput(final int addr, final String filename,
+            boolean append) throws IOException {
+        if (!append || getFile(addr, filename) == null) {
+            getFiles(addr).put(filename, new MemoryFile());
+        }
+
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                MemoryFile f = getWritableFile(addr, filename);
+                if (f == null) {
+                    throw new IOException(filename + " was deleted");
+                }
+                f.write(b, off, len);
+            }
+        };
+    }
+
+    public ByteBuffer map(int addr, String filename) throws IOException {
+        MemoryFile f = getFile(addr, filename);
+        if (f == null) {
+            throw new FileNotFoundException(Utility.realFilename(addr, filename)
+                    + " (No such file in memory storage)");
+        }
+        // as with openInput, later writes are not visible in the buffer
+        return f.read().slice().asReadOnlyBuffer();
+    }
+
+    public void write(int addr, String filename, long position,
+            ByteBuffer src) throws IOException {
+        MemoryFile f = getWritableFile(addr, filename);
+        if (f == null) {
+            throw new FileNotFoundException(Utility.realFilename(addr, filename)
+                    + " (No such file in memory storage)");
+        }
+        if (position + src.remaining() > Integer.MAX_VALUE) {
+            throw new IOException("File too large for memory storage");
+        }
+        f.write((int) position, src);
+    }
+
+    public boolean delete(int addr, String filename) {
+        return getFiles(addr).remove(filename) != null;
+    }
+
+    private HashMap<String, MemoryFile> getFiles(int addr) {
+        HashMap<String, MemoryFile> files = nodes.get(addr);
+        if (files == null) {
+            files = new HashMap<String, MemoryFile>();
+            nodes.put(addr, files);
+        }
+        return files;
+    }
+
+    private MemoryFile getFile(int addr, String filename) {
+        return getFiles(addr).get(filename);
+    }
+
+    /**
+     * Get a file that is about to be modified, copying it first if it is
+     * shared.
+     */
+    private MemoryFile getWritableFile(int addr, String filename) {
+        MemoryFile f = getFile(addr, filename);
+        if (f != null && f.shared) {
+            f = new MemoryFile(f);
+            getFiles(addr).put(filename, f);
+        }
+        return f;
+    }
+}
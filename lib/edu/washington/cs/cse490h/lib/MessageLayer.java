@@ -28,15 +28,26 @@ import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
  *  --routerPort=<int>                                - Router port [default -1]
  *  -a --nodeAddr=<int>                               - Node address [default -1]
  *  -t --timestep=<long>                              - Time step, in ms [default 1000]
+ *  --adaptiveClock=<boolean>                         - Start emulation rounds as soon as there is work [default false]
+ *  --minRoundTime=<long>                             - Minimum round duration with an adaptive clock, in ms [default 10]
  *  -r --seed=<long>                                  - Random seed
  *  -c --commandFile=<string>                         - Command file [default ]
  *  -f --failureLvlInt=<int>                          - Failure level, a number between 0 and 4 [default 4]
+ *  --passThrough=<boolean>                           - Emulate without dropping or delaying received packets [default false]
+ *  --localNodes=<int>                                - Emulate this many nodes in one process, without a Router [default 0]
+ *  --vectorClocks=<boolean>                          - Carry vector clocks in emulated packets [default false]
+ *  --groupCommit=<boolean>                           - Make storage writes durable only at sync() or at the end of rounds [default false]
+ *  --groupCommitBytes=<int>                          - Sync a storage stream once this many bytes are buffered [default 4096]
+ *  --groupCommitRounds=<int>                         - Sync all storage streams every this many rounds [default 1]
+ *  --memStorage=<boolean>                            - Keep the storage of simulated nodes in memory [default false]
  *
  * Debugging Options:
  *  -L --synopticTotallyOrderedLogFilename=<string>   - Synoptic totally ordered log filename [default ]
  *  -l --synopticPartiallyOrderedLogFilename=<string> - Synoptic partially ordered log filename [default ]
  *  -o --replayOutputFilename=<string>                - Replay output filename [default ]
  *  --replayInputFilename=<string>                    - Replay input filename [default ]
+ *  --fastReplay=<boolean>                            - Run replayed emulation rounds back to back [default false]
+ *  --replayCheckpoints=<boolean>                     - Record a state checkpoint every emulation round in the replay output file [default false]
  *
  * </pre>   
  */
@@ -105,6 +116,19 @@ public class MessageLayer {
 	@Option(value = "-t Time step, in ms", aliases = { "-time-step" })
 	public static long timestep = 1000;
 
+	/**
+	 * Start emulation rounds as soon as packets, timeouts or commands are
+	 * waiting, instead of after a fixed time step
+	 */
+	@Option(value = "Start emulation rounds as soon as there is work", aliases = { "-adaptive-clock" })
+	public static boolean adaptiveClock = false;
+
+	/**
+	 * Minimum round duration with an adaptive clock
+	 */
+	@Option(value = "Minimum round duration with an adaptive clock, in ms", aliases = { "-min-round-time" })
+	public static long minRoundTime = 10;
+
 	/**
 	 * Seed to use
 	 */
@@ -122,6 +146,51 @@ public class MessageLayer {
 	 */
 	@Option(value="-f Failure level, a number between 0 and 4", aliases={"-failure-lvl"})
 	public static int failureLvlInt = 4;
+
+	/**
+	 * Deliver packets without the emulator's drop/delay lottery
+	 */
+	@Option(value="Emulate without dropping or delaying received packets", aliases={"-pass-through"})
+	public static boolean passThrough = false;
+
+	/**
+	 * Number of nodes to emulate in this process, routed in memory
+	 */
+	@Option(value="Emulate this many nodes in one process, without a Router", aliases={"-local-nodes"})
+	public static int localNodes = 0;
+
+	/**
+	 * Attach the sender's vector clock to emulated packets, so that the
+	 * partially ordered logs of different nodes can be merged
+	 */
+	@Option(value="Carry vector clocks in emulated packets", aliases={"-vector-clocks"})
+	public static boolean vectorClocks = false;
+
+	/**
+	 * Buffer storage writes until the node calls sync(), the buffer is full,
+	 * or the end of a round. Buffered writes are lost if the node crashes.
+	 */
+	@Option(value="Make storage writes durable only at sync() or at the end of rounds", aliases={"-group-commit"})
+	public static boolean groupCommit = false;
+
+	/**
+	 * Group commit size threshold
+	 */
+	@Option(value="Sync a storage stream once this many bytes are buffered", aliases={"-group-commit-bytes"})
+	public static int groupCommitBytes = 4096;
+
+	/**
+	 * Group commit round threshold
+	 */
+	@Option(value="Sync all storage streams every this many rounds", aliases={"-group-commit-rounds"})
+	public static int groupCommitRounds = 1;
+
+	/**
+	 * Keep the persistent storage of simulated nodes in memory instead of
+	 * under storage/
+	 */
+	@Option(value="Keep the storage of simulated nodes in memory", aliases={"-mem-storage"})
+	public static boolean memStorage = false;
 	// end option group "Execution Options"
 
 
@@ -152,6 +221,19 @@ public class MessageLayer {
 	 */
 	@Option(value="Replay input filename", aliases={"-replay-infile"})
 	public static String replayInputFilename = "";
+
+	/**
+	 * Skip the wait between rounds when replaying an emulation
+	 */
+	@Option(value="Run replayed emulation rounds back to back", aliases={"-fast-replay"})
+	public static boolean fastReplay = false;
+
+	/**
+	 * Record a hash of the node's state and its packet counters at the end of
+	 * every emulation round. Replays of the file check them.
+	 */
+	@Option(value="Record a state checkpoint every emulation round in the replay output file", aliases={"-replay-checkpoints"})
+	public static boolean replayCheckpoints = false;
 	// end option group "Debugging Options"
 
 
@@ -270,6 +352,33 @@ public class MessageLayer {
 				}
 
 
+			} else if (localNodes > 0) { //emulate a whole cluster in this process
+				if (commandFile.equals("")) {
+					printError("Emulating local nodes requires a command file");
+					return;
+				}
+				if (failureLvl != FailureLvl.NOTHING) {
+					printError("Emulating local nodes requires failure level 0");
+					return;
+				}
+				if (!replayOutputFilename.equals("") || !replayInputFilename.equals("")) {
+					printError("Replay is not supported when emulating local nodes");
+					return;
+				}
+
+				EmulationCluster cluster;
+				try {
+					cluster = new EmulationCluster(nodeImpl, localNodes, failureLvl, seed, timestep, commandFile);
+				} catch(IOException e) {
+					printError("Incorrect command file name given to Emulator. Exception: " + e);
+					return;
+				} catch(IllegalArgumentException e) {
+					printError("Illegal arguments given to Emulator. Exception: " + e);
+					return;
+				}
+
+				cluster.start();
+				return;
 			} else { //emulate
 				if (replayInputFilename.equals("")) {
 					if (routerHostname == "" || routerPort == -1) {
@@ -1,9 +1,9 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 
 /**
  * Node -- Class defining the interface and basic functionality of a node. The
@@ -106,6 +106,15 @@ public abstract class Node {
 	 */
 	public abstract void onCommand(String command);
 
+	/**
+	 * Called by the manager at the end of every round that this node is up
+	 * for, after all of the round's events. Nodes can use it to do work once
+	 * per round instead of once per event, such as acknowledging all of the
+	 * packets that arrived in the round. Does nothing by default.
+	 */
+	public void onRoundEnd() {
+	}
+
 	/**
 	 * This method should be the one called to send a message.
 	 * 
@@ -145,6 +154,13 @@ public abstract class Node {
 		}
 	}
 
+	/**
+	 * @return The current round of the simulation or emulation
+	 */
+	public long now() {
+		return manager.now();
+	}
+
 	/**
 	 * Adds a timer interrupt for the current node. If timeout is 0, it just
 	 * invokes the method
@@ -221,9 +237,7 @@ public abstract class Node {
 			handleDiskWriteEvent("creation of " + filename, "create:"
 					+ filename);
 		}
-		Utility.mkdirs(addr);
-		File f = new File(Utility.realFilename(addr, filename));
-		return new PersistentStorageWriter(this, f, append);
+		return new PersistentStorageWriter(this, filename, append);
 	}
 
 	/**
@@ -244,9 +258,111 @@ public abstract class Node {
 			handleDiskWriteEvent("creation of " + filename, "create:"
 					+ filename);
 		}
-		Utility.mkdirs(addr);
-		File f = new File(Utility.realFilename(addr, filename));
-		return new PersistentStorageOutputStream(this, f, append);
+		return new PersistentStorageOutputStream(this, filename, append);
+	}
+
+	/**
+	 * Gets a BinaryStorageWriter object for the filename specified
+	 * 
+	 * @param filename
+	 *            The file to open for writing
+	 * @param append
+	 *            Whether to append to the end of the file, or start at the
+	 *            beginning
+	 * @return A BinaryStorageWriter that can write to the file
+	 * @throws IOException
+	 *             If the file cannot be opened for writing
+	 */
+	public BinaryStorageWriter getBinaryWriter(String filename, boolean append)
+	throws IOException {
+		if (!Utility.fileExists(this, filename) || !append) {
+			handleDiskWriteEvent("creation of " + filename, "create:"
+					+ filename);
+		}
+		return new BinaryStorageWriter(this, filename, append);
+	}
+
+	/**
+	 * Gets a BinaryStorageReader object for the filename specified
+	 * 
+	 * @param filename
+	 *            The file to read
+	 * @return A BinaryStorageReader that can read the file
+	 * @throws IOException
+	 *             If the file does not exist or cannot be read
+	 */
+	public BinaryStorageReader getBinaryReader(String filename)
+	throws IOException {
+		return new BinaryStorageReader(this, filename);
+	}
+
+	/**
+	 * Opens a write-ahead log, with segments of
+	 * WriteAheadLog.DEFAULT_SEGMENT_SIZE bytes
+	 * 
+	 * @param name
+	 *            The name of the log. Its files are named after it
+	 * @return The log, positioned after its last valid record
+	 * @throws IOException
+	 *             If the log cannot be read
+	 */
+	public WriteAheadLog getWriteAheadLog(String name) throws IOException {
+		return getWriteAheadLog(name, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens a write-ahead log
+	 * 
+	 * @param name
+	 *            The name of the log. Its files are named after it
+	 * @param segmentSize
+	 *            How many bytes to write to a segment file before starting
+	 *            the next one
+	 * @return The log, positioned after its last valid record
+	 * @throws IOException
+	 *             If the log cannot be read
+	 */
+	public WriteAheadLog getWriteAheadLog(String name, int segmentSize)
+	throws IOException {
+		return new WriteAheadLog(this, name, segmentSize);
+	}
+
+	/**
+	 * Opens a key-value store, which the manager compacts between rounds
+	 * 
+	 * @param name
+	 *            The name of the store. Its files are named after it
+	 * @return The store, with its index loaded
+	 * @throws IOException
+	 *             If the store cannot be read
+	 */
+	public KVStore getKVStore(String name) throws IOException {
+		return new KVStore(this, manager, name);
+	}
+
+	/**
+	 * @return The backend that holds this node's persistent storage
+	 */
+	StorageBackend getStorage() {
+		return manager.getStorage();
+	}
+
+	/**
+	 * Open the stream that a PersistentStorageWriter or
+	 * PersistentStorageOutputStream writes through.
+	 * 
+	 * @param filename
+	 *            The file to write to
+	 * @param append
+	 *            Whether to append to the end of the file
+	 * @return The stream
+	 * @throws IOException
+	 *             If the file cannot be opened for writing
+	 */
+	GroupCommitOutputStream openStorageStream(String filename, boolean append)
+	throws IOException {
+		return new GroupCommitOutputStream(manager, addr,
+				getStorage().openOutput(addr, filename, append));
 	}
 
 	/**
@@ -259,10 +375,22 @@ public abstract class Node {
 	 *            Synoptic string to use for this event
 	 */
 	void handleDiskWriteEvent(String description, String synDescription) {
+		handleDiskWriteEvent(StorageEvent.of(description, synDescription));
+	}
+
+	/**
+	 * Called before any modification of persistent storage. The event's
+	 * descriptions are only rendered if the crash prompt or a synoptic log
+	 * needs them.
+	 * 
+	 * @param event
+	 *            The operation that is being attempted
+	 */
+	void handleDiskWriteEvent(StorageEvent event) {
 		// Ask the manager to check whether we should crash or not.
-		manager.checkWriteCrash(this, description);
+		manager.checkWriteCrash(this, event);
 		// Since we didn't crash, notify manager of this write event.
-		manager.storageWriteEvent(this, synDescription);
+		manager.storageWriteEvent(this, event);
 	}
 
 	/**
@@ -273,8 +401,18 @@ public abstract class Node {
 	 *            This is mostly to aid in debugging and user-specified crashes.
 	 */
 	public void handleDiskReadEvent(String synDescription) {
+		handleDiskReadEvent(StorageEvent.of("read", synDescription));
+	}
+
+	/**
+	 * Called after any retrieval of state from persistent storage.
+	 * 
+	 * @param event
+	 *            The operation that was performed
+	 */
+	void handleDiskReadEvent(StorageEvent event) {
 		// Notify manager of this read event.
-		manager.storageReadEvent(this, synDescription);
+		manager.storageReadEvent(this, event);
 	}
 
 	/**
@@ -302,6 +440,26 @@ public abstract class Node {
 		return Utility.byteArrayToString(bytes);
 	}
 
+	/**
+	 * Returns a string representation of len bytes, starting at off, written
+	 * or read from persistent storage. By default this is
+	 * storageBytesToString of those bytes.
+	 * 
+	 * @param bytes
+	 *            storage bytes observed by the simulator
+	 * @param off
+	 *            offset of the first byte
+	 * @param len
+	 *            number of bytes
+	 * @return string representation of the storage bytes
+	 */
+	public String storageBytesToString(byte[] bytes, int off, int len) {
+		if (off == 0 && len == bytes.length) {
+			return storageBytesToString(bytes);
+		}
+		return storageBytesToString(Arrays.copyOfRange(bytes, off, off + len));
+	}
+
 	@Override
 	public String toString() {
 		return "addr: " + addr;
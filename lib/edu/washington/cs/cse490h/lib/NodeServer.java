@@ -1,8 +1,12 @@
 package edu.washington.cs.cse490h.lib;
 
 import java.lang.Thread;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.net.Socket;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,17 +15,24 @@ import java.io.OutputStream;
  * In a separate thread, this class listens to incoming messages from the router
  * and stores the data received.
  */
-public class NodeServer implements Runnable {
+public class NodeServer extends NodeTransport implements Runnable {
+	// how long close() waits for the router to acknowledge the FIN, in ms
+	private static final long CLOSE_TIMEOUT = 2000;
+
 	private Socket socket;
-	private ArrayList<Packet> packetsReceived;
+	// written by the reader thread, drained by the emulator thread
+	private ConcurrentLinkedQueue<Packet> packetsReceived;
 	private InputStream in;
 	private OutputStream out;
 	private int address;
-	private Emulator parent;
+	// set to null by close()
+	private volatile Emulator parent;
 
 	// termination state variables
-	private boolean gotFIN;
-	private boolean finished;
+	private volatile boolean gotFIN;
+	private volatile boolean finished;
+	// released when the reader thread exits, with or without a FIN
+	private final CountDownLatch readerDone;
 
 	/**
 	 * Creates a new NodeServer.
@@ -39,12 +50,13 @@ public class NodeServer implements Runnable {
 	 */
 	public NodeServer(String name, int port, int nodeAddr, Emulator parent) throws IOException{
 		socket = new Socket(name, port);
-		packetsReceived = new ArrayList<Packet>();
+		packetsReceived = new ConcurrentLinkedQueue<Packet>();
 		in = socket.getInputStream();
 		out = socket.getOutputStream();
 		gotFIN = false;
 		this.parent = parent;
 		finished = false;
+		readerDone = new CountDownLatch(1);
 		
 		address = nodeAddr;
 		out.write(nodeAddr);
@@ -76,16 +88,17 @@ public class NodeServer implements Runnable {
 		}catch(IOException e) {
 			System.err.println("Encountered IOException when trying to receive packet.");
 			//e.printStackTrace();
+		} finally {
+			readerDone.countDown();
 		}
 
 		try {
 			socket.close();
 		} catch (IOException e) {
 		}
-		synchronized (parent) {
-			if (parent != null) {
-				parent.IOFinish();
-			}
+		Emulator emulator = parent;
+		if (emulator != null) {
+			emulator.IOFinish();
 		}
 	}
 
@@ -94,13 +107,28 @@ public class NodeServer implements Runnable {
 	 * 
 	 * @return The first packet stored
 	 */
+	@Override
 	protected Packet getPacket() {
-		synchronized (packetsReceived) {
-			if (packetsReceived.isEmpty()) {
-				return null;
-			}
-			return packetsReceived.remove(0);
+		return packetsReceived.poll();
+	}
+
+	/**
+	 * Moves all the packets stored so far to a list, in the order they were
+	 * received.
+	 * 
+	 * @param list
+	 *            The list to append the packets to
+	 * @return The number of packets moved
+	 */
+	@Override
+	protected int drainTo(List<Packet> list) {
+		int count = 0;
+		Packet packet;
+		while ((packet = packetsReceived.poll()) != null) {
+			list.add(packet);
+			++count;
 		}
+		return count;
 	}
 
 	/**
@@ -109,6 +137,7 @@ public class NodeServer implements Runnable {
 	 * @param pkt
 	 *            Serialized version of the packet
 	 */
+	@Override
 	protected void send(byte[] pkt) {
 		try {
 			out.write(pkt);
@@ -126,51 +155,59 @@ public class NodeServer implements Runnable {
 	 *            The packet to store
 	 */
 	private void storePacket(Packet packet) {
-		synchronized (packetsReceived) {
-			packetsReceived.add(packet);
+		packetsReceived.add(packet);
+
+		// parent is set to null by close()
+		Emulator emulator = parent;
+		if (emulator != null) {
+			emulator.packetArrived();
 		}
 	}
 	
 	/**
-	 * Close the connection cleanly.
+	 * Close the connection cleanly. The router acknowledges our FIN, then all
+	 * the in-transit messages are handed back to it in a single write,
+	 * followed by a second FIN. If the router does not acknowledge the FIN
+	 * within CLOSE_TIMEOUT ms, the socket is closed without handing them back.
 	 */
+	@Override
 	protected void close() {
 		try {
 			Packet fin = Packet.getFinPacket(address);
 			send(fin.pack());
 
 			// wait until the router acknowledges our closing attempt
-			while (!gotFIN) {
-				if (socket.isClosed()) {
-					// to prevent a race condition:
-					if (!gotFIN) {
-						throw new IOException("Socket closed before we got a FIN back!");
-					}
+			try {
+				if (!readerDone.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					throw new IOException("Timed out waiting for a FIN back!");
 				}
-				Thread.yield();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for a FIN back!");
+			}
+			if (!gotFIN) {
+				throw new IOException("Socket closed before we got a FIN back!");
 			}
 
 			// send back all the in-transit messages
-			synchronized (packetsReceived) {
-				for (Packet pkt : packetsReceived) {
-					send(pkt.pack());
-				}
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			Packet pkt;
+			while ((pkt = packetsReceived.poll()) != null) {
+				batch.write(pkt.pack());
 			}
-			for (Packet pkt : parent.inTransitMsgs) {
-				send(pkt.pack());
+			for (Packet p : parent.inTransitMsgs) {
+				batch.write(p.pack());
 			}
 
-			// send a second fin to finalize the close
-			send(fin.pack());
+			// and a second fin to finalize the close
+			batch.write(fin.pack());
+			send(batch.toByteArray());
 		} catch (IOException e) {
-			System.err.println("Error while sending back packets.");
+			System.err.println("Error while sending back packets: " + e.getMessage());
 			//e.printStackTrace();
 		}
 
 		packetsReceived.clear();
-		synchronized (parent) {
-			parent = null;
-		}
+		parent = null;
 		finished = true;
 
 		try {
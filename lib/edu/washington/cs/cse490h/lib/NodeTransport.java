@@ -0,0 +1,41 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.List;
+
+/**
+ * Connection between an Emulator and the router that carries its packets.
+ * NodeServer talks to a Router process over TCP, and LocalNodeServer talks
+ * to a LocalRouter in the same process.
+ */
+public abstract class NodeTransport {
+	/**
+	 * Gets the first packet stored
+	 * 
+	 * @return The first packet stored, or null if there is none
+	 */
+	protected abstract Packet getPacket();
+
+	/**
+	 * Moves all the packets stored so far to a list, in the order they were
+	 * received.
+	 * 
+	 * @param list
+	 *            The list to append the packets to
+	 * @return The number of packets moved
+	 */
+	protected abstract int drainTo(List<Packet> list);
+
+	/**
+	 * Send a packet to the router
+	 * 
+	 * @param pkt
+	 *            Serialized version of the packet
+	 */
+	protected abstract void send(byte[] pkt);
+
+	/**
+	 * Close the connection cleanly. Packets that have not been delivered to
+	 * the node are handed back to the router.
+	 */
+	protected abstract void close();
+}
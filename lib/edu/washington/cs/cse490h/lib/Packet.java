@@ -24,8 +24,13 @@ public class Packet {
 	
 	protected static final byte FIN = 1;
 	protected static final byte REPLAY = 2;
+	protected static final byte VTIME = 4;
 	
 	private byte[] payload;
+	// encoded vector clock of the sender, see ClockExtension. Null if none
+	private byte[] clockExt;
+	// the sender's clock as reconstructed by the receiver
+	private VectorTime vtime;
 
 	static class CorruptPacketException extends IOException {
 		private static final long serialVersionUID = -8471415959243642433L;
@@ -157,6 +162,40 @@ public class Packet {
 		return payload;
 	}
 
+	/**
+	 * @return The encoded vector clock carried by this packet, or null if it
+	 *         does not carry one
+	 */
+	protected byte[] getClockExtension() {
+		return clockExt;
+	}
+
+	/**
+	 * Attach an encoded vector clock to this packet
+	 * 
+	 * @param clockExt
+	 *            The encoded clock, see ClockExtension
+	 */
+	protected void setClockExtension(byte[] clockExt) {
+		this.clockExt = clockExt;
+	}
+
+	/**
+	 * @return The sender's vector clock, as reconstructed on arrival, or null
+	 *         if the packet did not carry one
+	 */
+	protected VectorTime getVectorTime() {
+		return vtime;
+	}
+
+	/**
+	 * @param vtime
+	 *            The sender's vector clock, as reconstructed on arrival
+	 */
+	protected void setVectorTime(VectorTime vtime) {
+		this.vtime = vtime;
+	}
+
 	/**
 	 * Convert the Packet object into a byte array for sending over the wire.
 	 * Format:
@@ -166,6 +205,10 @@ public class Packet {
 	 *        flags: 1 byte
 	 *        payload length: 4 byte
 	 *        payload: <= MAX_PAYLOAD_SIZE bytes
+	 * If the VTIME flag is set, the payload is preceded by the clock extension,
+	 * and the payload length covers both:
+	 *        extension length: varint
+	 *        extension: see ClockExtension
 	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
 	 */
 	protected byte[] pack() {	
@@ -175,8 +218,18 @@ public class Packet {
 			out.writeByte(dest);
 			out.writeByte(src);
 			out.writeByte(protocol);
-			out.writeByte(flags);
-			out.writeInt(payload.length);
+			if (clockExt == null) {
+				out.writeByte(flags);
+				out.writeInt(payload.length);
+			} else {
+				ByteArrayOutputStream extStream = new ByteArrayOutputStream();
+				Utility.writeVarint(new DataOutputStream(extStream), clockExt.length);
+				extStream.write(clockExt);
+
+				out.writeByte(flags | VTIME);
+				out.writeInt(extStream.size() + payload.length);
+				extStream.writeTo(out);
+			}
 
 			out.write(payload, 0, payload.length);
 			
@@ -243,7 +296,20 @@ public class Packet {
 			byte[] payload = new byte[payloadLength];
 			in.readFully(payload);
 
-			return new Packet(dest, src, protocol, flags, payload);
+			if ((flags & VTIME) == 0) {
+				return new Packet(dest, src, protocol, flags, payload);
+			}
+
+			// split the clock extension off the payload
+			DataInputStream extIn = new DataInputStream(new ByteArrayInputStream(payload));
+			byte[] clockExt = new byte[Utility.readVarint(extIn)];
+			extIn.readFully(clockExt);
+			byte[] rest = new byte[extIn.available()];
+			extIn.readFully(rest);
+
+			Packet packet = new Packet(dest, src, protocol, flags & ~VTIME, rest);
+			packet.clockExt = clockExt;
+			return packet;
 		}catch(Exception e) {
 			//e.printStackTrace();
 		}
@@ -1,7 +1,7 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 
 /**
@@ -9,41 +9,45 @@ import java.io.IOException;
  * will store things in the correct place. Students should only use the provided
  * classes to access the disc.
  */
-public class PersistentStorageInputStream extends FileInputStream {
+public class PersistentStorageInputStream extends FilterInputStream {
     private final Node n;
 
     PersistentStorageInputStream(Node n, String filename)
             throws FileNotFoundException {
-        super(Utility.realFilename(n.addr, filename));
+        super(n.getStorage().openInput(n.addr, filename));
         this.n = n;
     }
 
+    // the reads go straight to the underlying stream, so that each of them is
+    // logged exactly once
     @Override
     public int read() throws IOException {
-        int ret = super.read();
+        int ret = in.read();
         byte[] bytes = new byte[] { (byte) ret };
-        n.handleDiskReadEvent("b:" + n.storageBytesToString(bytes));
+        n.handleDiskReadEvent(StorageEvent.bytes(n, "read", "b:", bytes));
         return ret;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        int ret = super.read(b, off, len);
-        n.handleDiskReadEvent("b:" + n.storageBytesToString(b) + " offset:"
-                + off + " len:" + len);
+        int ret = in.read(b, off, len);
+        // only the bytes that were actually read
+        n.handleDiskReadEvent(StorageEvent.bytes(n, "read", "b:", b, off,
+                Math.max(ret, 0)));
         return ret;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        int ret = super.read(b);
-        n.handleDiskReadEvent("b:" + n.storageBytesToString(b));
+        int ret = in.read(b);
+        n.handleDiskReadEvent(StorageEvent.bytes(n, "read", "b:", b, 0,
+                Math.max(ret, 0)));
         return ret;
     }
 
     @Override
     public long skip(long skipN) throws IOException {
-        n.handleDiskReadEvent("skipN:" + skipN);
-        return super.skip(skipN);
+        n.handleDiskReadEvent(StorageEvent.of("skip", "skipN:" + skipN));
+        return in.skip(skipN);
     }
 }
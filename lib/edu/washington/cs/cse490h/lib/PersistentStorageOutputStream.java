@@ -1,7 +1,6 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 
 /**
@@ -13,49 +12,86 @@ import java.io.IOException;
  * Note that ANY modification can cause a crash with equal probability, so
  * write('a'); write('b'); write('c'); newLine(); has a higher chance of causing
  * a crash than write("abc\n");
+ * 
+ * In group commit mode (--groupCommit), writes are only durable after sync(),
+ * or once the manager syncs all nodes at the end of a round. Writes that are
+ * not durable yet are lost if the node crashes.
  */
-public class PersistentStorageOutputStream extends FileOutputStream {
-    private final File f;
+public class PersistentStorageOutputStream extends FilterOutputStream {
+    private final String filename;
     private final Node n;
+    private final GroupCommitOutputStream stream;
 
-    PersistentStorageOutputStream(Node n, File f, boolean append)
+    PersistentStorageOutputStream(Node n, String filename, boolean append)
             throws IOException {
-        super(f, append);
+        this(n, filename, n.openStorageStream(filename, append));
+    }
+
+    private PersistentStorageOutputStream(Node n, String filename,
+            GroupCommitOutputStream stream) {
+        super(stream);
         this.n = n;
-        this.f = f;
+        this.filename = filename;
+        this.stream = stream;
+    }
+
+    /**
+     * Make everything written so far durable. Without group commit, writes
+     * are durable right away and this does nothing. The node can crash before
+     * the sync, in which case the writes since the last sync are lost.
+     * 
+     * @throws IOException
+     *             If the writes cannot be made durable
+     */
+    public void sync() throws IOException {
+        if (!MessageLayer.groupCommit) {
+            return;
+        }
+        n.handleDiskWriteEvent("sync()", "sync");
+
+        stream.sync();
     }
 
     // methods for the file writer
     @Override
     public void write(byte[] b) throws IOException {
-        n.handleDiskWriteEvent("write(b)", "b:" + n.storageBytesToString(b));
+        n.handleDiskWriteEvent(StorageEvent.bytes(n, "write", "b:", b));
 
-        super.write(b);
-        super.flush();
+        out.write(b);
+        out.flush();
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        n.handleDiskWriteEvent("write(b, " + off + ", " + len + ")", "b:"
-                + n.storageBytesToString(b) + " offset:" + off + " len:" + len);
+        n.handleDiskWriteEvent(StorageEvent.bytes(n, "write", "b:", b, off,
+                len));
 
-        super.write(b, off, len);
-        super.flush();
+        out.write(b, off, len);
+        out.flush();
     }
 
     @Override
-    public void write(int b) throws IOException {
-        n.handleDiskWriteEvent("write(" + b + ")", "buf:" + b);
+    public void write(final int b) throws IOException {
+        n.handleDiskWriteEvent(new StorageEvent() {
+            @Override
+            String getDescription() {
+                return "write(" + b + ")";
+            }
+
+            @Override
+            String getSynopticDescription() {
+                return "buf:" + b;
+            }
+        });
 
-        super.write(b);
-        super.flush();
+        out.write(b);
+        out.flush();
     }
 
     public boolean delete() throws IOException {
-        n.handleDiskWriteEvent("delete of" + f.getName(), "delete:"
-                + f.getName());
+        n.handleDiskWriteEvent("delete of" + filename, "delete:" + filename);
 
         close();
-        return f.delete();
+        return n.getStorage().delete(n.addr, filename);
     }
 }
@@ -2,8 +2,8 @@ package edu.washington.cs.cse490h.lib;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 
 /**
  * File reader abstraction. This is basically a wrapped BufferedReader except it
@@ -15,7 +15,7 @@ public class PersistentStorageReader extends BufferedReader {
 
     PersistentStorageReader(Node n, String filename)
             throws FileNotFoundException {
-        super(new FileReader(Utility.realFilename(n.addr, filename)));
+        super(new InputStreamReader(n.getStorage().openInput(n.addr, filename)));
         this.n = n;
     }
 
@@ -23,22 +23,29 @@ public class PersistentStorageReader extends BufferedReader {
     public int read() throws IOException {
         int ret = super.read();
         char[] chars = new char[] { (char) ret };
-        n.handleDiskReadEvent("cbuf:" + Utility.logEscape(new String(chars)));
+        n.handleDiskReadEvent(StorageEvent.chars("read", "cbuf:", chars));
         return ret;
     }
 
     @Override
     public int read(char[] cbuf, int off, int len) throws IOException {
         int ret = super.read(cbuf, off, len);
-        n.handleDiskReadEvent("cbuf:" + Utility.logEscape(new String(cbuf))
-                + " offset:" + off + " len:" + len);
+        // only the chars that were actually read
+        n.handleDiskReadEvent(StorageEvent.chars("read", "cbuf:", cbuf, off,
+                Math.max(ret, 0)));
         return ret;
     }
 
     @Override
     public String readLine() throws IOException {
         String ret = super.readLine();
-        n.handleDiskReadEvent("readline: " + Utility.logEscape(ret));
+        if (ret == null) {
+            n.handleDiskReadEvent(StorageEvent.of("readLine()", "readline: "
+                    + Utility.logEscape(null)));
+        } else {
+            n.handleDiskReadEvent(StorageEvent.text("readLine", "", "readline: ",
+                    ret));
+        }
         return ret;
     }
 }
@@ -1,9 +1,8 @@
 package edu.washington.cs.cse490h.lib;
 
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 
 /**
@@ -15,23 +14,64 @@ import java.io.Writer;
  * Note that ANY modification can cause a crash with equal probability, so
  * write('a'); write('b'); write('c'); newLine(); has a higher chance of causing
  * a crash than write("abc\n");
+ * 
+ * In group commit mode (--groupCommit), writes are only durable after sync(),
+ * or once the manager syncs all nodes at the end of a round. Writes that are
+ * not durable yet are lost if the node crashes.
  */
-// TODO: byte stream rather than character stream
+// Binary data is better written with a BinaryStorageWriter
 public class PersistentStorageWriter extends BufferedWriter {
-    private final File f;
+    private static final StorageEvent NEWLINE_EVENT = StorageEvent.of(
+            "newLine()", "newline");
+    private final String filename;
     private final Node n;
+    private final GroupCommitOutputStream stream;
 
-    PersistentStorageWriter(Node n, File f, boolean append) throws IOException {
-        super(new FileWriter(f, append));
+    PersistentStorageWriter(Node n, String filename, boolean append)
+            throws IOException {
+        this(n, filename, n.openStorageStream(filename, append));
+    }
+
+    private PersistentStorageWriter(Node n, String filename,
+            GroupCommitOutputStream stream) {
+        super(new OutputStreamWriter(stream));
         this.n = n;
-        this.f = f;
+        this.filename = filename;
+        this.stream = stream;
+    }
+
+    /**
+     * Make everything written so far durable. Without group commit, writes
+     * are durable right away and this does nothing. The node can crash before
+     * the sync, in which case the writes since the last sync are lost.
+     * 
+     * @throws IOException
+     *             If the writes cannot be made durable
+     */
+    public void sync() throws IOException {
+        if (!MessageLayer.groupCommit) {
+            return;
+        }
+        n.handleDiskWriteEvent("sync()", "sync");
+
+        super.flush();
+        stream.sync();
     }
 
     // methods for the file writer
     @Override
-    public void write(int c) throws IOException {
-        n.handleDiskWriteEvent("write(" + c + ")", "buf:"
-                + Utility.logEscape("" + c));
+    public void write(final int c) throws IOException {
+        n.handleDiskWriteEvent(new StorageEvent() {
+            @Override
+            String getDescription() {
+                return "write(" + c + ")";
+            }
+
+            @Override
+            String getSynopticDescription() {
+                return "buf:" + Utility.logEscape("" + c);
+            }
+        });
 
         super.write(c);
         super.flush();
@@ -39,9 +79,8 @@ public class PersistentStorageWriter extends BufferedWriter {
 
     @Override
     public void write(char[] cbuf, int off, int len) throws IOException {
-        n.handleDiskWriteEvent("write(cbuf, " + off + ", " + len + ")", "buf:"
-                + Utility.logEscape(new String(cbuf)) + " offset:" + off
-                + " len:" + len);
+        n.handleDiskWriteEvent(StorageEvent.chars("write", "buf:", cbuf, off,
+                len));
 
         super.write(cbuf, off, len);
         super.flush();
@@ -49,8 +88,8 @@ public class PersistentStorageWriter extends BufferedWriter {
 
     @Override
     public void write(String s, int off, int len) throws IOException {
-        n.handleDiskWriteEvent("write(s, " + off + ", " + len + ")", "buf:"
-                + Utility.logEscape(s) + " offset:" + off + " len:" + len);
+        n.handleDiskWriteEvent(StorageEvent.text("write", "s", "buf:", s, off,
+                len));
 
         super.write(s, off, len);
         super.flush();
@@ -58,7 +97,7 @@ public class PersistentStorageWriter extends BufferedWriter {
 
     @Override
     public void newLine() throws IOException {
-        n.handleDiskWriteEvent("newLine()", "newline");
+        n.handleDiskWriteEvent(NEWLINE_EVENT);
 
         super.newLine();
         super.flush();
@@ -66,8 +105,7 @@ public class PersistentStorageWriter extends BufferedWriter {
 
     @Override
     public void write(char[] cbuf) throws IOException {
-        n.handleDiskWriteEvent("write(cbuf)", "buf:"
-                + Utility.logEscape(new String(cbuf)));
+        n.handleDiskWriteEvent(StorageEvent.chars("write", "buf:", cbuf));
 
         super.write(cbuf);
         super.flush();
@@ -75,8 +113,8 @@ public class PersistentStorageWriter extends BufferedWriter {
 
     @Override
     public Writer append(CharSequence csq) throws IOException {
-        n.handleDiskWriteEvent("append(csq)", "append buf:"
-                + Utility.logEscape("" + csq));
+        n.handleDiskWriteEvent(StorageEvent.text("append", "csq",
+                "append buf:", String.valueOf(csq)));
 
         Writer ret = super.append(csq);
         super.flush();
@@ -85,11 +123,22 @@ public class PersistentStorageWriter extends BufferedWriter {
     }
 
     @Override
-    public Writer append(CharSequence csq, int start, int end)
-            throws IOException {
-        n.handleDiskWriteEvent("append(csq, " + start + ", " + end + ")",
-                "append buf:" + Utility.logEscape("" + csq) + " start:" + start
-                        + " end:" + end);
+    public Writer append(final CharSequence csq, final int start,
+            final int end) throws IOException {
+        n.handleDiskWriteEvent(new StorageEvent() {
+            @Override
+            String getDescription() {
+                return "append(csq, " + start + ", " + end + ")";
+            }
+
+            @Override
+            String getSynopticDescription() {
+                CharSequence s = (csq == null ? "null" : csq);
+                return "append buf:"
+                        + Utility.logEscape(s.subSequence(start, end).toString())
+                        + " start:" + start + " end:" + end;
+            }
+        });
 
         Writer ret = super.append(csq, start, end);
         super.flush();
@@ -98,9 +147,18 @@ public class PersistentStorageWriter extends BufferedWriter {
     }
 
     @Override
-    public Writer append(char c) throws IOException {
-        n.handleDiskWriteEvent("append(" + c + ")", "append buf:"
-                + Utility.logEscape(String.valueOf(c)));
+    public Writer append(final char c) throws IOException {
+        n.handleDiskWriteEvent(new StorageEvent() {
+            @Override
+            String getDescription() {
+                return "append(" + c + ")";
+            }
+
+            @Override
+            String getSynopticDescription() {
+                return "append buf:" + Utility.logEscape(String.valueOf(c));
+            }
+        });
 
         Writer ret = super.append(c);
         super.flush();
@@ -110,17 +168,16 @@ public class PersistentStorageWriter extends BufferedWriter {
 
     @Override
     public void write(String str) throws IOException {
-        n.handleDiskWriteEvent("write(str)", "buf:" + Utility.logEscape(str));
+        n.handleDiskWriteEvent(StorageEvent.text("write", "str", "buf:", str));
 
         super.write(str);
         super.flush();
     }
 
     public boolean delete() throws IOException {
-        n.handleDiskWriteEvent("delete of" + f.getName(), "delete:"
-                + f.getName());
+        n.handleDiskWriteEvent("delete of" + filename, "delete:" + filename);
 
         close();
-        return f.delete();
+        return n.getStorage().delete(n.addr, filename);
     }
 }
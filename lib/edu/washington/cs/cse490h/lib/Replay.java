@@ -5,6 +5,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 
 import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
 
@@ -37,6 +38,10 @@ public class Replay {
 	protected static final int NULL = 0;
 	protected static final int ADDR = 1;
 	protected static final int USER = 2;
+	protected static final int CHECKPOINT = 3;
+
+	// packet read by peekPacket, returned by the next call to getPacket
+	private static Packet lookahead;
 
 	/**
 	 * Initialize the replay.
@@ -51,6 +56,7 @@ public class Replay {
 	 */
 	protected static long init(DataInputStream in, boolean controlInput) throws IOException {
 		replayIn = in;
+		lookahead = null;
 		Replay.controlInput = controlInput;
 
 		if (in != null) {
@@ -138,6 +144,68 @@ public class Replay {
 				&& (pkt.getProtocol() == USER);
 	}
 
+	/**
+	 * Get a checkpoint packet that records the state of the node at the end of
+	 * a round, so that a replay can check that it has not diverged.
+	 * 
+	 * @param round
+	 *            The round that just ended
+	 * @param stateHash
+	 *            Hash of the node's state
+	 * @param pktsSent
+	 *            The number of packets sent so far
+	 * @param pktsDelivered
+	 *            The number of packets delivered so far
+	 * @return The checkpoint packet object
+	 */
+	protected static Packet getCheckpointPacket(long round, int stateHash, int pktsSent, int pktsDelivered) {
+		ByteBuffer buf = ByteBuffer.allocate(20);
+		buf.putLong(round);
+		buf.putInt(stateHash);
+		buf.putInt(pktsSent);
+		buf.putInt(pktsDelivered);
+		return Packet.getReplayPacket(Manager.BROADCAST_ADDRESS, CHECKPOINT, buf.array());
+	}
+
+	/**
+	 * Test if a packet is a checkpoint packet
+	 * 
+	 * @param pkt
+	 *            The packet to test
+	 * @return true if the packet is a checkpoint packet, false otherwise
+	 */
+	protected static boolean isCheckpointPacket(Packet pkt) {
+		return ((pkt.getFlags() & Packet.REPLAY) != 0)
+				&& (pkt.getProtocol() == CHECKPOINT);
+	}
+
+	/**
+	 * Describe the contents of a checkpoint packet.
+	 * 
+	 * @param pkt
+	 *            The checkpoint packet
+	 * @return A human readable description of the checkpoint
+	 */
+	protected static String checkpointToString(Packet pkt) {
+		ByteBuffer buf = ByteBuffer.wrap(pkt.getPayload());
+		return "round: " + buf.getLong() + " state hash: " + buf.getInt()
+				+ " packets sent: " + buf.getInt() + " packets delivered: " + buf.getInt();
+	}
+
+	/**
+	 * Look at the next packet of the replay input file without consuming it.
+	 * 
+	 * @return The next packet, or null if there are no more packets
+	 * @throws CorruptPacketException
+	 *             If there is an error in the read packet
+	 */
+	protected static Packet peekPacket() throws CorruptPacketException {
+		if (lookahead == null) {
+			lookahead = Packet.unpack(replayIn);
+		}
+		return lookahead;
+	}
+
 	/**
 	 * Read the next packet from the replay input file. If there are no more
 	 * packets, replay is stopped.
@@ -150,7 +218,12 @@ public class Replay {
 		Packet pkt;
 		
 		do {
-			pkt = Packet.unpack(replayIn);
+			if (lookahead != null) {
+				pkt = lookahead;
+				lookahead = null;
+			} else {
+				pkt = Packet.unpack(replayIn);
+			}
 			if (pkt == null) {
 				System.out.println("Reached end of deterministic replay.  Stopping...");
 				parent.stop();
@@ -32,6 +32,15 @@ import plume.Options;
  * Execution Options:
  *   -p --localPort=<int>   - Local UDP port [default -1]
  *
+ * Fault Injection Options:
+ *   -d --dropRate=<double>     - Drop probability of links not in the link file [default 0.0]
+ *   --latency=<string>         - Latency of links not in the link file: N, min-max or exp:mean, in ms [default 0]
+ *   --reorderRate=<double>     - Reorder probability of links not in the link file [default 0.0]
+ *   --reorderDelay=<long>      - Extra delay of reordered packets, in ms [default 50]
+ *   -l --linkFile=<string>     - Per-link fault file [default ]
+ *   --tickDuration=<long>      - Fault injection timer tick, in ms [default 5]
+ *   -r --seed=<long>           - Random seed for fault injection
+ *
  * </pre>
  */
 public class Router {
@@ -39,18 +48,24 @@ public class Router {
 	private ServerSocket socket;
 	// emulatedNodes is also used as a lock
 	protected Map<Integer, NodeContainer> emulatedNodes;
+	// null if packets are forwarded without fault injection
+	private LinkFaultInjector faults;
 
 	/**
 	 * Construct a new Router
 	 *
 	 * @param port
 	 *            The port to listen on. This must be a valid port (>1024)
+	 * @param faults
+	 *            The fault injection stage to run forwarded packets through, or
+	 *            null to forward them untouched
 	 * @throws IOException
 	 *             If there is an error creating the socket server
 	 */
-	private Router(int port) throws IOException {
+	private Router(int port, LinkFaultInjector faults) throws IOException {
 		socket = new ServerSocket(port);
 		emulatedNodes = Collections.synchronizedMap( new HashMap<Integer, NodeContainer>() ) ;
+		this.faults = faults;
 	}
 
 	/**
@@ -98,9 +113,42 @@ public class Router {
 	 */
 	protected void exit() {
 		System.out.println("Router exiting...");
+		if (faults != null) {
+			faults.stop();
+		}
 		System.exit(0);
 	}
 
+	/**
+	 * Called by an emulated node to forward a packet to another node. If fault
+	 * injection is enabled, the packet may be dropped or held back according to
+	 * the profile of the link.
+	 *
+	 * @param src
+	 *            The virtual address of the node that sent the packet
+	 * @param dest
+	 *            The virtual address of the node to forward the packet to
+	 * @param packet
+	 *            The packet to forward
+	 */
+	protected void forward(int src, int dest, final Packet packet) {
+		final NodeContainer container = emulatedNodes.get(dest);
+		if (container == null) {
+			System.err.println("Router: no node with address " + dest + ", dropping: " + packet);
+			return;
+		}
+
+		if (faults == null) {
+			container.send(packet);
+		} else {
+			faults.forward(src, dest, packet, new Runnable() {
+				public void run() {
+					container.send(packet);
+				}
+			});
+		}
+	}
+
 	/**
 	 * Called by an emulated node to signal that it is quitting
 	 *
@@ -183,6 +231,52 @@ public class Router {
 	// end option group "Execution Options"
 
 
+	////////////////////////////////////////////////////
+	/**
+	 * Drop probability of links that are not in the link file
+	 */
+	@OptionGroup("Fault Injection Options")
+	@Option(value="-d Drop probability of links not in the link file", aliases={"-drop-rate"})
+	public static double dropRate = 0;
+
+	/**
+	 * Latency of links that are not in the link file
+	 */
+	@Option(value="Latency of links not in the link file: N, min-max or exp:mean, in ms", aliases={"-link-latency"})
+	public static String latency = "0";
+
+	/**
+	 * Reorder probability of links that are not in the link file
+	 */
+	@Option(value="Reorder probability of links not in the link file", aliases={"-reorder-rate"})
+	public static double reorderRate = 0;
+
+	/**
+	 * How long a reordered packet is held back
+	 */
+	@Option(value="Extra delay of reordered packets, in ms", aliases={"-reorder-delay"})
+	public static long reorderDelay = 50;
+
+	/**
+	 * File with per-link fault profiles
+	 */
+	@Option(value="-l Per-link fault file", aliases={"-link-file"})
+	public static String linkFile = "";
+
+	/**
+	 * Granularity of the delay timer
+	 */
+	@Option(value="Fault injection timer tick, in ms", aliases={"-tick-duration"})
+	public static long tickDuration = 5;
+
+	/**
+	 * Seed to use for fault injection
+	 */
+	@Option(value="-r Random seed for fault injection", aliases={"-rand-seed"})
+	public static Long seed = null;
+	// end option group "Fault Injection Options"
+
+
 	/** One line synopsis of usage */
 	private static String usage_string
 	= "java Router [options]";
@@ -232,8 +326,28 @@ public class Router {
 			return;
 		}
 
+		LinkFaultInjector faults = null;
+		if (dropRate != 0 || !latency.equals("0") || reorderRate != 0 || !linkFile.equals("")) {
+			if (seed == null) {
+				seed = System.currentTimeMillis();
+			}
+			System.out.println("Injecting link faults with seed: " + seed);
+
+			try {
+				LinkFaultInjector.LinkProfile defaultProfile =
+					LinkFaultInjector.parseProfile(dropRate, latency, reorderRate);
+				faults = new LinkFaultInjector(defaultProfile, linkFile, reorderDelay, tickDuration, seed);
+			} catch (IOException e) {
+				printError("Unable to read link file. Exception: " + e);
+				return;
+			} catch (IllegalArgumentException e) {
+				printError("Illegal fault injection options. Exception: " + e);
+				return;
+			}
+		}
+
 		try {
-			router = new Router(localPort);
+			router = new Router(localPort, faults);
 			router.start();
 		}catch(IOException e) {
 			System.err.println("Invalid port given to Router. Exception: " + e);
@@ -8,7 +8,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Random;
+import java.util.TreeSet;
 
 import edu.washington.cs.cse490h.lib.Node.NodeCrashException;
 
@@ -59,12 +59,15 @@ public class Simulator extends Manager {
         setParser(new SimulationCommandsParser());
 
         System.out.println("Starting simulation with seed: " + this.seed);
-        Utility.randNumGen = new Random(this.seed);
 
         nodes = new HashMap<Integer, Node>();
         vtimes = new HashMap<Integer, VectorTime>();
         crashedNodes = new HashSet<Integer>();
 
+        if (MessageLayer.memStorage) {
+            setStorage(new MemoryStorageBackend());
+        }
+
         setTime(0);
         // NOTE: cannot produce a TIMESTEP event here as the nodes haven't
         // been created yet and we must associate TIMESTEP events with nodes
@@ -136,6 +139,8 @@ public class Simulator extends Manager {
 
     @Override
     protected void start() {
+        Utility.setRNG(rng);
+
         // start the synoptic loggers
         synTotalOrderLogger.start(MessageLayer.synopticTotalOrderLogFilename);
         synPartialOrderLogger
@@ -228,6 +233,11 @@ public class Simulator extends Manager {
 
         executeEvents(currentRoundEvents);
 
+        endRound();
+
+        maintainStorage();
+        syncStorage();
+
         setTime(now() + 1);
         logSimulatorEvent("TIMESTEP time:" + now());
     }
@@ -244,6 +254,8 @@ public class Simulator extends Manager {
             System.out.println(i + ": failed");
         }
 
+        syncAllStorage();
+
         // stop the synoptic logger
         synTotalOrderLogger.stop();
         synPartialOrderLogger.stop();
@@ -316,6 +328,7 @@ public class Simulator extends Manager {
             }
 
             logEventWithNodeField(crashingNode, "FAILURE");
+            discardStorage(node);
 
             nodes.remove(node);
             crashedNodes.add(node);
@@ -340,9 +353,9 @@ public class Simulator extends Manager {
     }
 
     @Override
-    protected void checkWriteCrash(Node n, String description) {
+    protected void checkWriteCrash(Node n, StorageEvent event) {
         if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-            if (Utility.getRNG().nextDouble() < failureRate) {
+            if (rng.nextDouble() < failureRate) {
                 System.out.println("Randomly failing before write: " + n.addr);
                 NodeCrashException e = failNode(n.addr);
                 // This function is called by Node, so we need to rethrow the
@@ -352,7 +365,7 @@ public class Simulator extends Manager {
         } else {
             try {
                 System.out.println("Crash node " + n.addr + " before "
-                        + description + "? (y/n)");
+                        + event.getDescription() + "? (y/n)");
                 String input = Replay.getLine().trim();
                 if (input.length() != 0 && input.charAt(0) == 'y') {
                     NodeCrashException e = failNode(n.addr);
@@ -367,13 +380,28 @@ public class Simulator extends Manager {
     }
 
     @Override
-    protected void storageWriteEvent(Node node, String description) {
-        logEventWithNodeField(node, "WRITE " + description);
+    protected void storageWriteEvent(Node node, StorageEvent event) {
+        if (isLogging()) {
+            logEventWithNodeField(node, "WRITE "
+                    + event.getSynopticDescription());
+        } else {
+            skipEvent(node);
+        }
+    }
+
+    @Override
+    protected void storageReadEvent(Node node, StorageEvent event) {
+        if (isLogging()) {
+            logEventWithNodeField(node, "READ "
+                    + event.getSynopticDescription());
+        } else {
+            skipEvent(node);
+        }
     }
 
     @Override
-    protected void storageReadEvent(Node node, String description) {
-        logEventWithNodeField(node, "READ " + description);
+    protected boolean isLogging() {
+        return synTotalOrderLogger.isLogging() || super.isLogging();
     }
 
     /****************** Methods to check and handle events ******************/
@@ -412,7 +440,7 @@ public class Simulator extends Manager {
             Iterator<Packet> iter = currentPackets.iterator();
             while (iter.hasNext()) {
                 Packet p = iter.next();
-                double rand = Utility.getRNG().nextDouble();
+                double rand = rng.nextDouble();
                 if (rand < dropRate) {
                     System.out.println("Randomly dropping: " + p.toString());
                     logInTransit(p, "DROP");
@@ -481,7 +509,7 @@ public class Simulator extends Manager {
             Iterator<Packet> iter = currentPackets.iterator();
             while (iter.hasNext()) {
                 Packet p = iter.next();
-                double rand = Utility.getRNG().nextDouble();
+                double rand = rng.nextDouble();
                 // adjust the probability since these are not independent events
                 // Ex: 50% drop rate and 50% delay rate should mean that nothing
                 // gets through
@@ -514,7 +542,7 @@ public class Simulator extends Manager {
             Integer[] addrCopy = nodes.keySet().toArray(new Integer[0]);
 
             for (Integer i : addrCopy) {
-                double rand = Utility.getRNG().nextDouble();
+                double rand = rng.nextDouble();
                 if (rand < failureRate) {
                     currentRoundEvents.add(Event.getFailure(i));
                 }
@@ -522,7 +550,7 @@ public class Simulator extends Manager {
 
             addrCopy = crashedNodes.toArray(new Integer[0]);
             for (Integer i : addrCopy) {
-                double rand = Utility.getRNG().nextDouble();
+                double rand = rng.nextDouble();
                 if (rand < recoveryRate) {
                     currentRoundEvents.add(Event.getStart(i));
                 }
@@ -640,7 +668,7 @@ public class Simulator extends Manager {
                 }
             } while (doAgain);
         } else {
-            Collections.shuffle(currentRoundEvents, Utility.getRNG());
+            Collections.shuffle(currentRoundEvents, rng);
             System.out.println("Executing with order: ");
             for (Event ev : currentRoundEvents) {
                 System.out.println(ev.toString());
@@ -649,6 +677,24 @@ public class Simulator extends Manager {
         }
     }
 
+    /**
+     * Tell every live node that the round is over, in address order.
+     */
+    private void endRound() {
+        for (Integer addr : new TreeSet<Integer>(nodes.keySet())) {
+            Node node = nodes.get(addr);
+            if (node == null) {
+                // crashed by an earlier node's end of round
+                continue;
+            }
+            try {
+                node.onRoundEnd();
+            } catch (NodeCrashException e) {
+                failNode(addr);
+            }
+        }
+    }
+
     /**
      * Process an event.
      * 
@@ -0,0 +1,101 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the persistent storage of the nodes lives. The PersistentStorage*
+ * classes read and write through the backend of their node's manager, so
+ * node implementations never see which one is in use.
+ */
+public interface StorageBackend {
+    /**
+     * Test if a file exists
+     * 
+     * @param addr
+     *            The address of the node that owns the file
+     * @param filename
+     *            The name of the file
+     * @return true if the file exists, false otherwise
+     */
+    boolean exists(int addr, String filename);
+
+    /**
+     * Open a file for reading
+     * 
+     * @param addr
+     *            The address of the node that owns the file
+     * @param filename
+     *            The name of the file
+     * @return A stream over the contents of the file
+     * @throws FileNotFoundException
+     *             If the file does not exist
+     */
+    InputStream openInput(int addr, String filename)
+            throws FileNotFoundException;
+
+    /**
+     * Open a file for writing, creating it if needed
+     * 
+     * @param addr
+     *            The address of the node that owns the file
+     * @param filename
+     *            The name of the file
+     * @param append
+     *            Whether to append to the end of the file, or start at the
+     *            beginning
+     * @return A stream that writes to the file
+     * @throws IOException
+     *             If the file cannot be opened for writing
+     */
+    OutputStream openOutput(int addr, String filename, boolean append)
+            throws IOException;
+
+    /**
+     * Map the current contents of a file into memory, for random access
+     * reads. Later writes to the file may or may not be visible through the
+     * buffer, so it should be mapped again after the file grows.
+     * 
+     * @param addr
+     *            The address of the node that owns the file
+     * @param filename
+     *            The name of the file
+     * @return A read-only buffer over the contents of the file
+     * @throws IOException
+     *             If the file does not exist or cannot be mapped
+     */
+    ByteBuffer map(int addr, String filename) throws IOException;
+
+    /**
+     * Write the remaining bytes of a buffer at a position in a file, growing
+     * the file if needed. Bytes between the old end of the file and the
+     * position read as zeroes.
+     * 
+     * @param addr
+     *            The address of the node that owns the file
+     * @param filename
+     *            The name of the file
+     * @param position
+     *            Where to write in the file
+     * @param src
+     *            The bytes to write. Its position is moved past them
+     * @throws IOException
+     *             If the file does not exist or cannot be written
+     */
+    void write(int addr, String filename, long position, ByteBuffer src)
+            throws IOException;
+
+    /**
+     * Delete a file
+     * 
+     * @param addr
+     *            The address of the node that owns the file
+     * @param filename
+     *            The name of the file
+     * @return true if the file was deleted, false otherwise
+     */
+    boolean delete(int addr, String filename);
+}
@@ -0,0 +1,208 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ * Description of a persistent storage operation, handed to the manager before
+ * a write (to decide whether to crash) and after a read (to log it).
+ *
+ * The descriptions are only rendered when something asks for them: the
+ * synoptic loggers when they are logging, and the interactive crash prompt.
+ * Building them eagerly would format every buffer on every I/O call, which
+ * costs more than the I/O itself for storage-heavy nodes. Only the range of
+ * the buffer that the operation touches is rendered.
+ *
+ * An event refers to the caller's buffer, so it must be used before the call
+ * that created it returns, and must not be kept. The factory methods cover
+ * buffers and constant descriptions; other operations subclass this.
+ * </pre>
+ */
+abstract class StorageEvent {
+
+    /**
+     * @return Description of the operation for the crash prompt
+     */
+    abstract String getDescription();
+
+    /**
+     * @return Synoptic string for the event
+     */
+    abstract String getSynopticDescription();
+
+    /**
+     * An event whose descriptions are cheap constants, such as a sync or the
+     * creation of a file.
+     *
+     * @param description
+     *            Description shown by the crash prompt
+     * @param synDescription
+     *            Synoptic string for the event
+     */
+    static StorageEvent of(String description, String synDescription) {
+        return new BufferEvent(null, description, null, synDescription, null,
+                0, 0, false);
+    }
+
+    /**
+     * An operation on a whole byte array, rendered with the node's
+     * storageBytesToString.
+     */
+    static StorageEvent bytes(Node n, String method, String tag, byte[] b) {
+        return new BufferEvent(n, method, "b", tag, b, 0, b.length, false);
+    }
+
+    /**
+     * An operation on len bytes of b starting at off.
+     */
+    static StorageEvent bytes(Node n, String method, String tag, byte[] b,
+            int off, int len) {
+        return new BufferEvent(n, method, "b", tag, b, off, len, true);
+    }
+
+    /**
+     * An operation on a whole char array, escaped for the synoptic log.
+     */
+    static StorageEvent chars(String method, String tag, char[] cbuf) {
+        return new BufferEvent(null, method, "cbuf", tag, cbuf, 0,
+                cbuf.length, false);
+    }
+
+    /**
+     * An operation on len chars of cbuf starting at off.
+     */
+    static StorageEvent chars(String method, String tag, char[] cbuf,
+            int off, int len) {
+        return new BufferEvent(null, method, "cbuf", tag, cbuf, off, len,
+                true);
+    }
+
+    /**
+     * An operation on a whole string, escaped for the synoptic log.
+     */
+    static StorageEvent text(String method, String arg, String tag, String s) {
+        return new BufferEvent(null, method, arg, tag, s, 0, s.length(), false);
+    }
+
+    /**
+     * An operation on len chars of s starting at off.
+     */
+    static StorageEvent text(String method, String arg, String tag, String s,
+            int off, int len) {
+        return new BufferEvent(null, method, arg, tag, s, off, len, true);
+    }
+
+    /**
+     * An operation on ranges of byte buffers, such as a gather write,
+     * rendered as one byte array with the node's storageBytesToString.
+     *
+     * @param bufs
+     *            The buffers
+     * @param starts
+     *            The index of the first byte of each range
+     * @param lengths
+     *            The length of each range
+     * @param position
+     *            The position in the file, or -1 for the current one
+     */
+    static StorageEvent buffers(final Node n, final String method,
+            final String tag, final ByteBuffer[] bufs, final int[] starts,
+            final int[] lengths, final long position) {
+        return new StorageEvent() {
+            @Override
+            String getDescription() {
+                String at = (position < 0 ? "" : " at " + position);
+                return method + "(" + total() + " bytes" + at + ")";
+            }
+
+            @Override
+            String getSynopticDescription() {
+                byte[] bytes = new byte[total()];
+                int off = 0;
+                for (int i = 0; i < bufs.length; ++i) {
+                    ByteBuffer view = bufs[i].duplicate();
+                    view.limit(starts[i] + lengths[i]);
+                    view.position(starts[i]);
+                    view.get(bytes, off, lengths[i]);
+                    off += lengths[i];
+                }
+                String at = (position < 0 ? "" : " position:" + position);
+                return tag + n.storageBytesToString(bytes) + at + " len:"
+                        + bytes.length;
+            }
+
+            private int total() {
+                int total = 0;
+                for (int len : lengths) {
+                    total += len;
+                }
+                return total;
+            }
+        };
+    }
+
+    /**
+     * An operation on a range of a buffer, or one with constant descriptions.
+     */
+    private static final class BufferEvent extends StorageEvent {
+        private final Node n;
+        // method name and argument name, e.g. "write" and "cbuf"
+        private final String method;
+        private final String arg;
+        // prefix of the synoptic description, e.g. "buf:"
+        private final String tag;
+        // byte[], char[] or String
+        private final Object data;
+        private final int off;
+        private final int len;
+        // whether the call took an offset and a length
+        private final boolean ranged;
+
+        BufferEvent(Node n, String method, String arg, String tag,
+                Object data, int off, int len, boolean ranged) {
+            this.n = n;
+            this.method = method;
+            this.arg = arg;
+            this.tag = tag;
+            this.data = data;
+            this.off = off;
+            this.len = len;
+            this.ranged = ranged;
+        }
+
+        @Override
+        String getDescription() {
+            if (arg == null) {
+                return method;
+            }
+            if (ranged) {
+                return method + "(" + arg + ", " + off + ", " + len + ")";
+            }
+            return method + "(" + arg + ")";
+        }
+
+        @Override
+        String getSynopticDescription() {
+            if (arg == null) {
+                return tag;
+            }
+
+            StringBuilder sb = new StringBuilder(tag);
+            sb.append(renderData());
+            if (ranged) {
+                sb.append(" offset:").append(off).append(" len:").append(len);
+            }
+            return sb.toString();
+        }
+
+        private String renderData() {
+            if (data instanceof byte[]) {
+                return n.storageBytesToString((byte[]) data, off, len);
+            }
+            if (data instanceof char[]) {
+                return Utility.logEscape(new String((char[]) data, off, len));
+            }
+            return Utility.logEscape(((String) data).substring(off, off + len));
+        }
+    }
+}
@@ -44,6 +44,14 @@ public class SynopticLogger {
 
 
 
+	/**
+	 * @return Whether events are written anywhere. Callers can skip building
+	 *         expensive event strings if not.
+	 */
+	public boolean isLogging() {
+		return this.writer != null;
+	}
+
 	/**
 	 * Closes the log file and tears down logging state.
 	 */
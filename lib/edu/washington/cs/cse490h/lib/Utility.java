@@ -1,6 +1,9 @@
 package edu.washington.cs.cse490h.lib;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Random;
 
@@ -10,10 +13,27 @@ import java.util.Random;
 public class Utility {
 
     private static final String CHARSET = "US-ASCII";
-    static Random randNumGen;
+    // the RNG of the manager running on each thread, so that the nodes of an
+    // EmulationCluster do not share one
+    private static final ThreadLocal<Random> randNumGen = new ThreadLocal<Random>();
 
+    /**
+     * @return The random number generator of the manager running the calling
+     *         node
+     */
     public static Random getRNG() {
-        return randNumGen;
+        return randNumGen.get();
+    }
+
+    /**
+     * Make a manager's RNG the one returned by getRNG on the calling thread.
+     * Called by managers from the thread that runs their nodes.
+     * 
+     * @param rng
+     *            The manager's random number generator
+     */
+    static void setRNG(Random rng) {
+        randNumGen.set(rng);
     }
 
     /**
@@ -52,6 +72,28 @@ public class Utility {
         return null;
     }
 
+    /**
+     * Convert part of a byte[] to a string
+     *
+     * @param msg
+     *            The byte[] that holds the bytes to convert
+     * @param offset
+     *            Where the bytes start
+     * @param length
+     *            The number of bytes
+     * @return The converted String
+     */
+    public static String byteArrayToString(byte[] msg, int offset, int length) {
+        try {
+            return new String(msg, offset, length, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            System.err
+                    .println("Exception occured while converting byte array to string. Exception: "
+                            + e);
+        }
+        return null;
+    }
+
     /**
      * Escapes a string to be suitable for inclusion on a synoptic log event
      * line.
@@ -69,6 +111,46 @@ public class Utility {
         return "''";
     }
 
+    /**
+     * Write an unsigned variable-length integer: 7 bits per byte, low bits
+     * first, with the high bit set on all but the last byte.
+     * 
+     * @param out
+     *            The stream to write to
+     * @param value
+     *            The value to write. Must not be negative
+     * @throws IOException
+     *             If the write fails
+     */
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Read an unsigned variable-length integer written by writeVarint.
+     * 
+     * @param in
+     *            The stream to read from
+     * @return The value read
+     * @throws IOException
+     *             If the read fails or the value is malformed
+     */
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
     static String realFilename(int nodeAddr, String filename) {
         return "storage/" + nodeAddr + "/" + filename;
     }
@@ -81,7 +163,6 @@ public class Utility {
     }
 
     public static boolean fileExists(Node n, String filename) {
-        File f = new File(realFilename(n.addr, filename));
-        return f.exists();
+        return n.getStorage().exists(n.addr, filename);
     }
 }
@@ -18,6 +18,15 @@ public class VectorTime {
 		vecLength = maxNodes;
 	}
 	
+	/**
+	 * Builds a copy of another VectorTime
+	 * @param t the vtime to copy
+	 */
+	public VectorTime(VectorTime t) {
+		this.vector = new ArrayList<Integer>(t.vector);
+		vecLength = t.vecLength;
+	}
+
 	/**
 	 * @return length of the vector time
 	 */
@@ -95,6 +104,16 @@ public class VectorTime {
 		}
 	}
 	
+	/**
+	 * Updates the clock value at an index to be at least value
+	 * @param index
+	 * @param value
+	 */
+	public void updateTo(int index, int value) {
+		if (vector.get(index) < value)
+			vector.set(index, value);
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,604 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * <pre>
+ * Append-only log of binary records that a node can recover its state from
+ * after a crash. Nodes get one from Node.getWriteAheadLog().
+ *
+ * Every record gets a log sequence number (LSN) when it is appended. LSNs
+ * increase with every record, and can be used to read the record, to step
+ * to the records around it, and to throw away the records before it.
+ *
+ * The log is split in segment files, &lt;name&gt;.0, &lt;name&gt;.1, ..., each
+ * holding up to segmentSize bytes (unless a single record is bigger). An LSN
+ * is the number of the segment in the high 32 bits, and the offset of the
+ * record in it in the low 32 bits. truncateBefore() deletes whole segments,
+ * and records the first one that is left in &lt;name&gt;.head.
+ *
+ * Format of a record:
+ *        length of the payload: 4 bytes
+ *        CRC32 of the payload: 4 bytes
+ *        payload
+ *        length of the payload: 4 bytes, so the log can be scanned backwards
+ *
+ * Records are read through memory-mapped segments, so scanning the log costs
+ * no parsing beyond the framing, and recovery can start from the last record
+ * and walk back only as far as it needs. When the log is opened, only the
+ * last record is checked; a torn or corrupt tail is cut off.
+ *
+ * Appends are written through the node's storage streams rather than the
+ * mapping, so that they go through the same crash injection and group commit
+ * as other writes: every append can crash before the record is written, and
+ * with --groupCommit records are only durable after sync() or at the end of
+ * the round. Records that are not durable yet are read from memory, so that
+ * reading them never changes what survives a crash.
+ * </pre>
+ */
+public class WriteAheadLog {
+    /** Returned by the scanning methods when there is no such record */
+    public static final long NO_LSN = -1;
+
+    /** Size of the segments of logs opened without a segment size */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 4;
+
+    private final Node n;
+    private final String name;
+    private final int segmentSize;
+    private final StorageBackend storage;
+
+    private int firstSegment;
+    // the segment appended to, which might not exist yet
+    private int lastSegment;
+    // bytes appended to the last segment so far, durable or not
+    private int end;
+    // opened on the first append to the last segment
+    private GroupCommitOutputStream out;
+    // mapped segments, remapped when they are found to be too short
+    private final HashMap<Integer, ByteBuffer> mapped;
+    private final CRC32 crc;
+    private boolean closed;
+
+    /**
+     * Open a log, recovering where its last record ends.
+     *
+     * @param n
+     *            The node that owns the log
+     * @param name
+     *            The name of the log, used as a prefix for its files
+     * @param segmentSize
+     *            How many bytes to put in a segment before starting the next
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    WriteAheadLog(Node n, String name, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE + TRAILER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: "
+                    + segmentSize);
+        }
+        this.n = n;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.storage = n.getStorage();
+        this.mapped = new HashMap<Integer, ByteBuffer>();
+        this.crc = new CRC32();
+        this.out = null;
+        this.closed = false;
+
+        firstSegment = readHead();
+        // segments left behind by a crash in the middle of truncateBefore()
+        for (int seg = firstSegment - 1; seg >= 0
+                && storage.exists(n.addr, segmentName(seg)); --seg) {
+            deleteSegment(seg);
+        }
+
+        lastSegment = firstSegment;
+        while (storage.exists(n.addr, segmentName(lastSegment + 1))) {
+            ++lastSegment;
+        }
+        end = 0;
+        if (storage.exists(n.addr, segmentName(lastSegment))) {
+            end = recoverEnd(lastSegment);
+        }
+    }
+
+    /**
+     * Append a record to the log. The node may crash before the record is
+     * written.
+     *
+     * @param record
+     *            The payload of the record
+     * @return The LSN of the record
+     * @throws IOException
+     *             If the record cannot be written
+     */
+    public long append(byte[] record) throws IOException {
+        return append(record, 0, record.length);
+    }
+
+    /**
+     * Append a record to the log. The node may crash before the record is
+     * written.
+     *
+     * @param b
+     *            Buffer holding the payload of the record
+     * @param off
+     *            Offset of the payload in b
+     * @param len
+     *            Length of the payload
+     * @return The LSN of the record
+     * @throws IOException
+     *             If the record cannot be written
+     */
+    public long append(final byte[] b, final int off, final int len)
+            throws IOException {
+        checkOpen();
+        int size = HEADER_SIZE + len + TRAILER_SIZE;
+        if (end > 0 && (long) end + size > segmentSize) {
+            roll();
+        }
+        if (out == null) {
+            openLastSegment();
+        }
+
+        final long lsn = toLsn(lastSegment, end);
+        n.handleDiskWriteEvent(new StorageEvent() {
+            @Override
+            String getDescription() {
+                return "append to " + name;
+            }
+
+            @Override
+            String getSynopticDescription() {
+                return "wal:" + name + " lsn:" + lsn + " b:"
+                        + n.storageBytesToString(b, off, len);
+            }
+        });
+
+        byte[] frame = new byte[size];
+        ByteBuffer.wrap(frame).putInt(len).putInt(checksum(b, off, len))
+                .put(b, off, len).putInt(len);
+        out.write(frame);
+        end += size;
+        return lsn;
+    }
+
+    /**
+     * Make every record appended so far durable. Without group commit,
+     * records are durable right away and this does nothing. The node can
+     * crash before the sync, in which case the records since the last sync
+     * are lost.
+     *
+     * @throws IOException
+     *             If the records cannot be made durable
+     */
+    public void sync() throws IOException {
+        checkOpen();
+        if (!MessageLayer.groupCommit) {
+            return;
+        }
+        n.handleDiskWriteEvent("sync()", "sync");
+
+        if (out != null) {
+            out.sync();
+        }
+    }
+
+    /**
+     * @return The LSN of the oldest record, or NO_LSN if the log is empty
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public long first() throws IOException {
+        checkOpen();
+        return firstFrom(firstSegment);
+    }
+
+    /**
+     * @return The LSN of the newest record, or NO_LSN if the log is empty
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public long last() throws IOException {
+        checkOpen();
+        return lastFrom(lastSegment);
+    }
+
+    /**
+     * @param lsn
+     *            The LSN of a record
+     * @return The LSN of the record after it, or NO_LSN if it is the newest
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public long next(long lsn) throws IOException {
+        checkLsn(lsn);
+        int seg = segmentOf(lsn);
+        int off = offsetOf(lsn);
+        int len = readInt(seg, off);
+        int nextOff = off + HEADER_SIZE + len + TRAILER_SIZE;
+        if (nextOff < segmentEnd(seg)) {
+            return toLsn(seg, nextOff);
+        }
+        return firstFrom(seg + 1);
+    }
+
+    /**
+     * @param lsn
+     *            The LSN of a record
+     * @return The LSN of the record before it, or NO_LSN if it is the oldest
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public long prev(long lsn) throws IOException {
+        checkLsn(lsn);
+        int seg = segmentOf(lsn);
+        int off = offsetOf(lsn);
+        if (off > 0) {
+            return recordEndingAt(seg, off);
+        }
+        return lastFrom(seg - 1);
+    }
+
+    /**
+     * Read a record.
+     *
+     * @param lsn
+     *            The LSN of the record
+     * @return The payload of the record
+     * @throws IOException
+     *             If the record cannot be read or is corrupt
+     */
+    public byte[] read(long lsn) throws IOException {
+        checkLsn(lsn);
+        int seg = segmentOf(lsn);
+        int off = offsetOf(lsn);
+        int len = readInt(seg, off);
+        final byte[] record = new byte[len];
+        readBytes(seg, off + HEADER_SIZE, record, 0, len);
+        if (readInt(seg, off + 4) != checksum(record, 0, len)) {
+            throw new IOException("Corrupt record in " + name + " at lsn "
+                    + lsn);
+        }
+
+        n.handleDiskReadEvent(StorageEvent.bytes(n, "read", "wal:" + name
+                + " b:", record));
+        return record;
+    }
+
+    /**
+     * Throw away the records before the segment that holds lsn. Records in
+     * that segment are kept, so some records before lsn may survive.
+     *
+     * @param lsn
+     *            The LSN of the oldest record that must be kept
+     * @throws IOException
+     *             If the log cannot be truncated
+     */
+    public void truncateBefore(long lsn) throws IOException {
+        checkOpen();
+        int seg = Math.min(segmentOf(lsn), lastSegment);
+        if (lsn == NO_LSN || seg <= firstSegment) {
+            return;
+        }
+
+        // the head is written first, so that a crash leaves the old segments
+        // unreferenced, and they are deleted when the log is opened again
+        String headName = headName();
+        n.handleDiskWriteEvent("write of " + headName, "truncate:" + name
+                + " segment:" + seg);
+        DataOutputStream head = new DataOutputStream(n.openStorageStream(
+                headName, false));
+        head.writeInt(seg);
+        head.close();
+
+        int oldFirst = firstSegment;
+        firstSegment = seg;
+        for (int s = oldFirst; s < seg; ++s) {
+            deleteSegment(s);
+        }
+    }
+
+    /**
+     * Close the log, syncing the records appended so far.
+     *
+     * @throws IOException
+     *             If the records cannot be written
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        mapped.clear();
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Close the log and delete all its files, oldest first, so that a crash
+     * in the middle leaves a log that can still be opened.
+     *
+     * @throws IOException
+     *             If the log cannot be closed
+     */
+    public void delete() throws IOException {
+        close();
+        for (int seg = firstSegment; seg <= lastSegment; ++seg) {
+            if (storage.exists(n.addr, segmentName(seg))) {
+                deleteSegment(seg);
+            }
+        }
+        String headName = headName();
+        if (storage.exists(n.addr, headName)) {
+            n.handleDiskWriteEvent("delete of " + headName, "delete:"
+                    + headName);
+            storage.delete(n.addr, headName);
+        }
+    }
+
+    /**
+     * Start a new segment once the last one is full. Closing the old segment
+     * syncs it.
+     */
+    private void roll() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        mapped.remove(lastSegment);
+        ++lastSegment;
+        end = 0;
+    }
+
+    private void openLastSegment() throws IOException {
+        String segName = segmentName(lastSegment);
+        if (!storage.exists(n.addr, segName)) {
+            n.handleDiskWriteEvent("creation of " + segName, "create:"
+                    + segName);
+        }
+        out = n.openStorageStream(segName, true);
+    }
+
+    private void deleteSegment(int seg) {
+        String segName = segmentName(seg);
+        n.handleDiskWriteEvent("delete of " + segName, "delete:" + segName);
+        storage.delete(n.addr, segName);
+        mapped.remove(seg);
+    }
+
+    /**
+     * Find where the valid records of a segment end. If the last record is
+     * intact, that is the end of the file. Otherwise, the segment is scanned
+     * from the start, and cut after the last valid record.
+     */
+    private int recoverEnd(int seg) throws IOException {
+        ByteBuffer buf = segment(seg, 0);
+        int size = buf.limit();
+        if (size == 0) {
+            return 0;
+        }
+        if (size >= HEADER_SIZE + TRAILER_SIZE) {
+            int len = buf.getInt(size - TRAILER_SIZE);
+            int start = size - TRAILER_SIZE - len - HEADER_SIZE;
+            if (len >= 0 && start >= 0 && isValidRecord(buf, start, size)) {
+                return size;
+            }
+        }
+
+        int pos = 0;
+        while (isValidRecord(buf, pos, size)) {
+            pos += HEADER_SIZE + buf.getInt(pos) + TRAILER_SIZE;
+        }
+
+        String segName = segmentName(seg);
+        System.err.println("Cutting torn tail of " + segName + " at " + pos);
+        byte[] valid = new byte[pos];
+        ByteBuffer d = buf.duplicate();
+        d.position(0);
+        d.get(valid);
+        n.handleDiskWriteEvent("rewrite of " + segName, "create:" + segName);
+        GroupCommitOutputStream rewrite = n.openStorageStream(segName, false);
+        rewrite.write(valid);
+        rewrite.close();
+        mapped.remove(seg);
+        return pos;
+    }
+
+    /**
+     * @return Whether a whole, uncorrupted record starts at pos and ends at
+     *         or before limit
+     */
+    private boolean isValidRecord(ByteBuffer buf, int pos, int limit) {
+        if (pos + HEADER_SIZE + TRAILER_SIZE > limit) {
+            return false;
+        }
+        int len = buf.getInt(pos);
+        if (len < 0 || len > limit - pos - HEADER_SIZE - TRAILER_SIZE
+                || buf.getInt(pos + HEADER_SIZE + len) != len) {
+            return false;
+        }
+        byte[] record = new byte[len];
+        ByteBuffer d = buf.duplicate();
+        d.position(pos + HEADER_SIZE);
+        d.get(record);
+        return buf.getInt(pos + 4) == checksum(record, 0, len);
+    }
+
+    /**
+     * @return The first record in seg or a later segment, or NO_LSN
+     */
+    private long firstFrom(int seg) throws IOException {
+        for (int s = Math.max(seg, firstSegment); s <= lastSegment; ++s) {
+            if (segmentEnd(s) > 0) {
+                return toLsn(s, 0);
+            }
+        }
+        return NO_LSN;
+    }
+
+    /**
+     * @return The last record in seg or an earlier segment, or NO_LSN
+     */
+    private long lastFrom(int seg) throws IOException {
+        for (int s = Math.min(seg, lastSegment); s >= firstSegment; --s) {
+            int segEnd = segmentEnd(s);
+            if (segEnd > 0) {
+                return recordEndingAt(s, segEnd);
+            }
+        }
+        return NO_LSN;
+    }
+
+    /**
+     * @return The record of seg whose trailer ends at off
+     */
+    private long recordEndingAt(int seg, int off) throws IOException {
+        int len = readInt(seg, off - TRAILER_SIZE);
+        return toLsn(seg, off - TRAILER_SIZE - len - HEADER_SIZE);
+    }
+
+    /**
+     * @return The number of bytes of records in a segment
+     */
+    private int segmentEnd(int seg) throws IOException {
+        if (seg == lastSegment) {
+            return end;
+        }
+        if (!storage.exists(n.addr, segmentName(seg))) {
+            return 0;
+        }
+        return segment(seg, 0).limit();
+    }
+
+    /**
+     * @return The int at pos in a segment
+     */
+    private int readInt(int seg, int pos) throws IOException {
+        if (pos + 4 <= durableEnd(seg)) {
+            return segment(seg, pos + 4).getInt(pos);
+        }
+        byte[] b = new byte[4];
+        readBytes(seg, pos, b, 0, 4);
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    /**
+     * Copy bytes of a segment. The bytes at the end of the last segment that
+     * are still waiting for a group commit are copied from the stream, as
+     * they are not in the file yet.
+     */
+    private void readBytes(int seg, int pos, byte[] dst, int off, int len)
+            throws IOException {
+        int durable = durableEnd(seg);
+        int inFile = Math.max(0, Math.min(len, durable - pos));
+        if (inFile > 0) {
+            ByteBuffer buf = segment(seg, pos + inFile).duplicate();
+            buf.position(pos);
+            buf.get(dst, off, inFile);
+        }
+        if (inFile < len) {
+            out.readPending(pos + inFile - durable, dst, off + inFile, len
+                    - inFile);
+        }
+    }
+
+    /**
+     * @return The number of bytes of a segment that are in its file
+     */
+    private int durableEnd(int seg) {
+        if (seg == lastSegment && out != null) {
+            return end - out.pendingSize();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Get a segment mapped with at least the first needed bytes, remapping it
+     * if it grew since it was mapped. Only bytes that are in the file can be
+     * needed.
+     */
+    private ByteBuffer segment(int seg, int needed) throws IOException {
+        ByteBuffer buf = mapped.get(seg);
+        if (buf != null && buf.limit() >= needed) {
+            return buf;
+        }
+        buf = storage.map(n.addr, segmentName(seg));
+        if (buf.limit() < needed) {
+            throw new IOException(segmentName(seg) + " is shorter than "
+                    + needed + " bytes");
+        }
+        mapped.put(seg, buf);
+        return buf;
+    }
+
+    private int readHead() throws IOException {
+        String headName = headName();
+        if (!storage.exists(n.addr, headName)) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(storage.openInput(n.addr,
+                headName));
+        try {
+            return in.readInt();
+        } catch (EOFException e) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkLsn(long lsn) throws IOException {
+        checkOpen();
+        int seg = segmentOf(lsn);
+        if (lsn < 0 || seg < firstSegment || seg > lastSegment
+                || offsetOf(lsn) >= segmentEnd(seg)) {
+            throw new IllegalArgumentException("Invalid lsn for " + name
+                    + ": " + lsn);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Log closed: " + name);
+        }
+    }
+
+    private int checksum(byte[] b, int off, int len) {
+        crc.reset();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+
+    private String segmentName(int seg) {
+        return name + "." + seg;
+    }
+
+    private String headName() {
+        return name + ".head";
+    }
+
+    private static long toLsn(int seg, int off) {
+        return ((long) seg << 32) | off;
+    }
+
+    private static int segmentOf(long lsn) {
+        return (int) (lsn >>> 32);
+    }
+
+    private static int offsetOf(long lsn) {
+        return (int) lsn;
+    }
+}
@@ -5,8 +5,6 @@ import java.util.HashMap;
 
 import edu.washington.cs.cse490h.lib.Callback;
 import edu.washington.cs.cse490h.lib.Node;
-import edu.washington.cs.cse490h.lib.PersistentStorageReader;
-import edu.washington.cs.cse490h.lib.PersistentStorageWriter;
 import edu.washington.cs.cse490h.lib.Utility;
 
 /**
@@ -49,6 +47,8 @@ public class Node2PC extends Node {
 
     public static int NUM_NODES = 4;
     public static int TIMEOUT = 4;
+    // the only transaction this node runs
+    private static final long TXN = 0;
 
     // 2PC state
     private boolean coordinator;
@@ -59,7 +59,7 @@ public class Node2PC extends Node {
     private HashMap<Integer, Decision> votes;
 
     // persistent storage
-    PersistentStorageWriter log;
+    TwoPCLog log;
 
     enum State {
         REQWAIT, VOTEWAIT, DECISIONWAIT, FINISHED
@@ -92,9 +92,10 @@ public class Node2PC extends Node {
     @Override
     public void start() {
         try {
-            if (!Utility.fileExists(this, "log")) {
+            log = new TwoPCLog(this, "log");
+            if (log.isEmpty()) {
                 // First start of node
-                log = getWriter("log", false);
+                log.logBegin();
                 logOutput("Started fresh and going to vote: " + vote);
                 add2PCTimeout(-1);
             } else {
@@ -110,34 +111,29 @@ public class Node2PC extends Node {
 
     /**
      * Recover using a log saved in persistent storage. We will attempt to use
-     * the log to decide.
+     * the log to decide. Only the latest checkpoint and the records after it
+     * are read.
      * 
      * @throws IOException
      */
     private void recoverWithLog() throws IOException {
-        PersistentStorageReader logReader = getReader("log");
+        TwoPCLog.TxnState txn = log.recover().get(TXN);
 
         boolean votedYes = false;
-        while (logReader.ready()) {
-            String line = logReader.readLine();
-            if (line.equals("START-2PC")) {
-                coordinator = true;
-            } else if (line.equals("COMMIT")) {
+        if (txn != null) {
+            coordinator = txn.coordinator;
+            votedYes = txn.votedYes;
+            if (txn.decision == Decision.COMMIT) {
                 logOutput("Discovered that we previously committed...");
                 finish(Decision.COMMIT, false);
                 return;
-            } else if (line.equals("ABORT")) {
+            } else if (txn.decision == Decision.ABORT) {
                 logOutput("Discovered that we previously aborted...");
                 finish(Decision.ABORT, false);
                 return;
-            } else if (line.equals("YES")) {
-                votedYes = true;
             }
         }
 
-        logReader.close();
-        log = getWriter("log", true);
-
         if (coordinator) {
             // We are the coordinator
             if (decide == Decision.UNDECIDED) {
@@ -176,7 +172,7 @@ public class Node2PC extends Node {
     private void finish(Decision d, boolean record) {
         if (record) {
             try {
-                log.write(d + "\n");
+                log.logDecision(TXN, d);
             } catch (IOException e) {
                 logError("Failed logging '" + d + "'");
                 fail();
@@ -316,7 +312,7 @@ public class Node2PC extends Node {
         }
 
         try {
-            log.write("START-2PC\n");
+            log.logStart(TXN);
         } catch (IOException e) {
             logError("Failed logging 'START-2PC'");
             fail();
@@ -404,7 +400,7 @@ public class Node2PC extends Node {
                         Utility.stringToByteArray(message));
             } else {
                 try {
-                    log.write("YES\n");
+                    log.logYes(TXN);
                 } catch (IOException e) {
                     logError("Failed logging 'YES'");
                     fail();
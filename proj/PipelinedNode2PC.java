@@ -0,0 +1,674 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import edu.washington.cs.cse490h.lib.Callback;
+import edu.washington.cs.cse490h.lib.Utility;
+
+/**
+ * <pre>
+ * A 2PC node that runs many transactions at once, over the RIO layer.
+ *
+ * Any node can coordinate transactions, with the command
+ * "txn p1 p2 ...", which starts a transaction with the given participants.
+ * Up to MAX_IN_FLIGHT of the transactions a node coordinates wait for votes
+ * at once; the rest queue behind them. Every node keeps the state of each
+ * transaction it takes part in in a table, keyed by transaction id, and
+ * logs to one TwoPCLog for all of them.
+ *
+ * The protocol is presumed abort:
+ *  - the coordinator sends VOTE_REQ to the participants. A participant
+ *    that votes yes logs it and waits for the decision; one that votes no
+ *    aborts right away
+ *  - the coordinator commits once all of them voted yes, and aborts on the
+ *    first no, or if the votes are not in after TIMEOUT rounds. It logs the
+ *    decision and sends it to all of the participants
+ *  - a participant logs the decision and answers DONE. It asks the
+ *    coordinator again with DECISION_REQ every TIMEOUT rounds until then
+ *  - the coordinator forgets the transaction once every participant is
+ *    done. A coordinator asked about a transaction it does not know
+ *    answers ABORT
+ *  - the coordinator answers every DONE with FORGET. A participant keeps
+ *    the decision in its log, and sends DONE again every TIMEOUT rounds,
+ *    until then. A vote request that comes again is answered from it
+ *
+ * A coordinator that restarts aborts the transactions it had not decided.
+ * It does not know the participants of the ones it committed, so it
+ * remembers those for good, to answer participants that ask. A participant
+ * that restarts asks about the transactions it voted yes on, and sends DONE
+ * for the ones it knows the outcome of.
+ *
+ * Messages are 9-byte records, [type][transaction id]. With BATCH_RECORDS
+ * set, all of the records for a peer in a round go out at the end of the
+ * round in one TXN_BATCH_PKT message, and the log is synced once, just
+ * before they go, rather than after every record. Otherwise, each is a
+ * message of its own.
+ *
+ * Transaction ids are the coordinator's RIO epoch (24 bits), a counter
+ * (32 bits) and the coordinator's address (8 bits), so they are unique
+ * across restarts, and participants can tell who to ask. Neither part
+ * wraps in practice, so an id is never used twice, and a commit remembered
+ * from an earlier life can never be taken for a new transaction.
+ *
+ * The command "report" prints how many of the transactions the node
+ * coordinated since it started committed and aborted, and the commits per
+ * round from the first start to the last decision. See
+ * gen_2pc_workload.pl and sim_2pc_pipelined.sh.
+ * </pre>
+ */
+public class PipelinedNode2PC extends RIONode {
+    // override the default failure rates
+    public static double getFailureRate() {
+        return 1 / 100.0;
+    }
+
+    public static double getRecoveryRate() {
+        return 10 / 100.0;
+    }
+
+    public static double getDropRate() {
+        return 5 / 100.0;
+    }
+
+    public static double getDelayRate() {
+        return 10 / 100.0;
+    }
+
+    public static int TIMEOUT = 30;
+    // transactions a coordinator waits for votes on at once
+    public static int MAX_IN_FLIGHT = 64;
+    // the chance that a participant votes yes
+    public static double YES_RATE = 0.95;
+    // send the records for a peer together at the end of the round
+    public static boolean BATCH_RECORDS = true;
+
+    // record types
+    private static final byte VOTE_REQ = 0;
+    private static final byte VOTE_YES = 1;
+    private static final byte VOTE_NO = 2;
+    private static final byte COMMIT = 3;
+    private static final byte ABORT = 4;
+    private static final byte DECISION_REQ = 5;
+    private static final byte DONE = 6;
+    private static final byte FORGET = 7;
+
+    private static final int RECORD_SIZE = 9;
+
+    enum State {
+        VOTEWAIT, DECISIONWAIT, ACKWAIT, FINISHED
+    };
+
+    /**
+     * What this node knows about a transaction
+     */
+    static class Txn {
+        long id;
+        boolean coordinator;
+        int[] participants;
+        // the participants the coordinator waits for, to vote or be done
+        BitSet pending;
+        State state;
+        Node2PC.Decision decision;
+        // when the coordinator was given the transaction
+        long startTime;
+        // when to give up waiting, or to ask or tell the coordinator again
+        long deadline;
+
+        Txn(long id) {
+            this.id = id;
+            this.coordinator = false;
+            this.participants = null;
+            this.pending = new BitSet();
+            this.decision = Node2PC.Decision.UNDECIDED;
+        }
+    }
+
+    // transaction state
+    private HashMap<Long, Txn> txns;
+    // transactions waiting for a place among the MAX_IN_FLIGHT
+    private LinkedList<Txn> queued;
+    private int inFlight;
+    private int nextTxn;
+    // transactions committed in an earlier life, whose participants are
+    // unknown
+    private HashSet<Long> recoveredCommits;
+
+    // records not sent yet, by peer
+    private HashMap<Integer, ByteArrayOutputStream> outgoing;
+    private boolean ticking;
+
+    // stats of the transactions coordinated since the node started
+    private int committed;
+    private int aborted;
+    private long firstStart;
+    private long lastDecision;
+    private long totalLatency;
+
+    // persistent storage
+    TwoPCLog log;
+
+    /**
+     * Create a new node and initialize everything
+     */
+    public PipelinedNode2PC() {
+        txns = new HashMap<Long, Txn>();
+        queued = new LinkedList<Txn>();
+        inFlight = 0;
+        nextTxn = 0;
+        recoveredCommits = new HashSet<Long>();
+        outgoing = new HashMap<Integer, ByteArrayOutputStream>();
+        ticking = false;
+        committed = 0;
+        aborted = 0;
+        firstStart = -1;
+        lastDecision = -1;
+        totalLatency = 0;
+    }
+
+    /**
+     * Called by the manager to start this node up.
+     */
+    @Override
+    public void start() {
+        if (getRIOEpoch() < 0) {
+            logError("Could not start the RIO layer");
+            fail();
+        }
+
+        try {
+            log = new TwoPCLog(this, "log");
+            // with batching, nothing we log is acted on before onRoundEnd
+            log.setSyncEachRecord(!BATCH_RECORDS);
+            if (log.isEmpty()) {
+                log.logBegin();
+                logOutput("Started fresh");
+            } else {
+                logOutput("Recovered. Checking logs...");
+                recoverWithLog();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Rebuild the transaction table from the log.
+     *
+     * @throws IOException
+     */
+    private void recoverWithLog() throws IOException {
+        Map<Long, TwoPCLog.TxnState> recovered = log.recover();
+        // copied, as logging changes the map
+        for (Map.Entry<Long, TwoPCLog.TxnState> e : new HashMap<Long, TwoPCLog.TxnState>(
+                recovered).entrySet()) {
+            long id = e.getKey();
+            TwoPCLog.TxnState s = e.getValue();
+            if (s.coordinator) {
+                if (s.decision == Node2PC.Decision.COMMIT) {
+                    recoveredCommits.add(id);
+                } else {
+                    // undecided transactions can be aborted, and aborts
+                    // are presumed
+                    if (s.decision == Node2PC.Decision.UNDECIDED) {
+                        logOutput("Aborting undecided transaction " + id);
+                        log.logDecision(id, Node2PC.Decision.ABORT);
+                    }
+                    log.forget(id);
+                }
+            } else if (s.decision == Node2PC.Decision.UNDECIDED) {
+                if (s.votedYes) {
+                    // we have no clue what the coordinator decided, so ask
+                    Txn txn = new Txn(id);
+                    txn.state = State.DECISIONWAIT;
+                    txn.deadline = now();
+                    txns.put(id, txn);
+                } else {
+                    log.forget(id);
+                }
+            } else {
+                // the coordinator may not have our DONE
+                Txn txn = new Txn(id);
+                txn.decision = s.decision;
+                finished(txn);
+                txn.deadline = now();
+            }
+        }
+        logOutput("Recovered " + txns.size() + " transactions, and "
+                + recoveredCommits.size() + " commits of earlier lives");
+    }
+
+    @Override
+    public void onCommand(String command) {
+        String[] args = command.split("\\s+");
+        if (args[0].equals("txn")) {
+            startCommand(args);
+        } else if (args[0].equals("report")) {
+            logOutput(report());
+        } else if (args[0].equals("status")) {
+            logOutput(toString());
+        } else {
+            logError("Unrecognized command: " + command);
+        }
+    }
+
+    /**
+     * Start a transaction, or queue it if MAX_IN_FLIGHT are already waiting
+     * for votes.
+     *
+     * @param args
+     *            "txn", then the addresses of the participants
+     */
+    private void startCommand(String[] args) {
+        BitSet members = new BitSet();
+        try {
+            for (int i = 1; i < args.length; ++i) {
+                int p = Integer.parseInt(args[i]);
+                if (p != addr) {
+                    members.set(p);
+                }
+            }
+        } catch (NumberFormatException e) {
+            logError("Not a list of participants: " + e.getMessage());
+            return;
+        }
+
+        Txn txn = new Txn(((getRIOEpoch() & 0xffffffL) << 40)
+                | ((nextTxn++ & 0xffffffffL) << 8) | addr);
+        txn.coordinator = true;
+        txn.participants = new int[members.cardinality()];
+        for (int i = 0, p = members.nextSetBit(0); p >= 0; p = members
+                .nextSetBit(p + 1)) {
+            txn.participants[i++] = p;
+        }
+        txn.startTime = now();
+        if (firstStart < 0) {
+            firstStart = txn.startTime;
+        }
+        txns.put(txn.id, txn);
+
+        if (inFlight < MAX_IN_FLIGHT) {
+            requestVotes(txn);
+        } else {
+            queued.add(txn);
+        }
+    }
+
+    /**
+     * Log the start of a transaction we coordinate, and ask for the votes.
+     */
+    private void requestVotes(Txn txn) {
+        try {
+            log.logStart(txn.id);
+        } catch (IOException e) {
+            logError("Failed logging 'START-2PC'");
+            fail();
+        }
+
+        ++inFlight;
+        txn.state = State.VOTEWAIT;
+        txn.deadline = now() + TIMEOUT;
+        for (int p : txn.participants) {
+            txn.pending.set(p);
+            queueRecord(p, VOTE_REQ, txn.id);
+        }
+        if (txn.participants.length == 0) {
+            decide(txn, Node2PC.Decision.COMMIT);
+        }
+    }
+
+    /**
+     * Log the decision on a transaction we coordinate, and send it to the
+     * participants. Starts the next queued transaction.
+     */
+    private void decide(Txn txn, Node2PC.Decision d) {
+        try {
+            log.logDecision(txn.id, d);
+        } catch (IOException e) {
+            logError("Failed logging '" + d + "'");
+            fail();
+        }
+
+        txn.decision = d;
+        txn.state = State.ACKWAIT;
+        byte type = (d == Node2PC.Decision.COMMIT ? COMMIT : ABORT);
+        txn.pending.clear();
+        for (int p : txn.participants) {
+            txn.pending.set(p);
+            queueRecord(p, type, txn.id);
+        }
+
+        if (d == Node2PC.Decision.COMMIT) {
+            ++committed;
+        } else {
+            ++aborted;
+        }
+        lastDecision = now();
+        totalLatency += lastDecision - txn.startTime;
+
+        --inFlight;
+        if (!queued.isEmpty()) {
+            requestVotes(queued.removeFirst());
+        }
+        forgetIfDone(txn);
+    }
+
+    /**
+     * Forget a transaction we coordinate once every participant is done
+     */
+    private void forgetIfDone(Txn txn) {
+        if (txn.state == State.ACKWAIT && txn.pending.isEmpty()) {
+            txns.remove(txn.id);
+            log.forget(txn.id);
+        }
+    }
+
+    /**
+     * Log the decision on a transaction we take part in.
+     */
+    private void learn(Txn txn, Node2PC.Decision d) {
+        try {
+            log.logDecision(txn.id, d);
+        } catch (IOException e) {
+            logError("Failed logging '" + d + "'");
+            fail();
+        }
+        txn.decision = d;
+        finished(txn);
+    }
+
+    /**
+     * Keep a transaction we took part in, and know the outcome of, until the
+     * coordinator has our DONE, in case its vote request comes again.
+     */
+    private void finished(Txn txn) {
+        txn.state = State.FINISHED;
+        txn.deadline = now() + TIMEOUT;
+        txns.put(txn.id, txn);
+    }
+
+    @Override
+    public void onRIOReceive(Integer from, int protocol, byte[] msg) {
+        if (protocol != Protocol.TXN_BATCH_PKT) {
+            logError("Packet with unknown protocol received. Protocol: "
+                    + protocol);
+            return;
+        }
+        if (msg.length % RECORD_SIZE != 0) {
+            logError("Malformed batch received. Length: " + msg.length);
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(msg);
+        while (buf.hasRemaining()) {
+            byte type = buf.get();
+            long id = buf.getLong();
+            receiveRecord(from, type, id);
+        }
+    }
+
+    /**
+     * Actually process a record.
+     *
+     * @param from
+     *            The address of the sender
+     * @param type
+     *            The type of the record
+     * @param id
+     *            The transaction it is about
+     */
+    private void receiveRecord(int from, byte type, long id) {
+        Txn txn = txns.get(id);
+
+        switch (type) {
+        // Records we should receive as coordinator
+        case VOTE_YES:
+        case VOTE_NO:
+            if (txn == null || !txn.coordinator
+                    || txn.state != State.VOTEWAIT) {
+                break;
+            }
+            if (type == VOTE_NO) {
+                decide(txn, Node2PC.Decision.ABORT);
+            } else {
+                txn.pending.clear(from);
+                if (txn.pending.isEmpty()) {
+                    decide(txn, Node2PC.Decision.COMMIT);
+                }
+            }
+            break;
+
+        case DECISION_REQ:
+            if (txn != null && txn.coordinator) {
+                if (txn.state == State.ACKWAIT) {
+                    queueRecord(from, txn.decision == Node2PC.Decision.COMMIT ? COMMIT
+                            : ABORT, id);
+                }
+                // otherwise, we have not decided yet
+            } else if (recoveredCommits.contains(id)) {
+                queueRecord(from, COMMIT, id);
+            } else if (coordinatorOf(id) == addr) {
+                queueRecord(from, ABORT, id);
+            }
+            break;
+
+        case DONE:
+            if (txn != null && txn.coordinator) {
+                if (txn.state != State.ACKWAIT) {
+                    // the participant voted no, and we have not seen it
+                    break;
+                }
+                txn.pending.clear(from);
+                forgetIfDone(txn);
+            }
+            if (coordinatorOf(id) == addr) {
+                queueRecord(from, FORGET, id);
+            }
+            break;
+
+        // Records we should receive as a participant
+        case VOTE_REQ:
+            if (txn == null) {
+                txn = new Txn(id);
+                txns.put(id, txn);
+                if (Utility.getRNG().nextDouble() < YES_RATE) {
+                    try {
+                        log.logYes(id);
+                    } catch (IOException e) {
+                        logError("Failed logging 'YES'");
+                        fail();
+                    }
+                    txn.state = State.DECISIONWAIT;
+                    txn.deadline = now() + TIMEOUT;
+                } else {
+                    learn(txn, Node2PC.Decision.ABORT);
+                }
+            }
+            if (txn.decision == Node2PC.Decision.ABORT) {
+                queueRecord(from, VOTE_NO, id);
+            } else if (!txn.coordinator) {
+                queueRecord(from, VOTE_YES, id);
+            }
+            break;
+
+        case COMMIT:
+        case ABORT:
+            if (txn != null && txn.state == State.DECISIONWAIT) {
+                learn(txn, type == COMMIT ? Node2PC.Decision.COMMIT
+                        : Node2PC.Decision.ABORT);
+            }
+            queueRecord(from, DONE, id);
+            break;
+
+        case FORGET:
+            if (txn != null && txn.state == State.FINISHED) {
+                txns.remove(id);
+                log.forget(id);
+            }
+            break;
+
+        default:
+            logError("Record with unknown type received. Type: " + type);
+        }
+    }
+
+    /**
+     * Called at the end of every round. Gives up on votes, and asks for
+     * decisions and sends DONEs, that are overdue, then sends the round's
+     * records, before the RIO layer sends its packets.
+     */
+    @Override
+    public void onRoundEnd() {
+        long now = now();
+        boolean waiting = false;
+        // decide() can add to the table
+        for (Txn txn : txns.values().toArray(new Txn[txns.size()])) {
+            if (txn.state == State.VOTEWAIT) {
+                if (now >= txn.deadline) {
+                    logOutput("Timed out waiting for votes on " + txn.id);
+                    decide(txn, Node2PC.Decision.ABORT);
+                } else {
+                    waiting = true;
+                }
+            } else if (txn.state == State.DECISIONWAIT) {
+                if (now >= txn.deadline) {
+                    queueRecord(coordinatorOf(txn.id), DECISION_REQ, txn.id);
+                    txn.deadline = now + TIMEOUT;
+                }
+                waiting = true;
+            } else if (txn.state == State.FINISHED) {
+                if (now >= txn.deadline) {
+                    queueRecord(coordinatorOf(txn.id), DONE, txn.id);
+                    txn.deadline = now + TIMEOUT;
+                }
+                waiting = true;
+            }
+        }
+
+        // the records can only go out once what they depend on is durable
+        try {
+            log.sync();
+        } catch (IOException e) {
+            logError("Failed syncing the log");
+            fail();
+        }
+        for (Iterator<Map.Entry<Integer, ByteArrayOutputStream>> iter = outgoing
+                .entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<Integer, ByteArrayOutputStream> e = iter.next();
+            RIOSend(e.getKey(), Protocol.TXN_BATCH_PKT, e.getValue()
+                    .toByteArray());
+            iter.remove();
+        }
+
+        // the simulation ends when nothing is pending, so keep a timeout
+        // while we wait on the clock
+        if (waiting && !ticking) {
+            addTick();
+        }
+
+        super.onRoundEnd();
+    }
+
+    /**
+     * Send a record to a peer, at the end of the round if records are
+     * batched
+     */
+    private void queueRecord(int dest, byte type, long id) {
+        byte[] record = ByteBuffer.allocate(RECORD_SIZE).put(type).putLong(id)
+                .array();
+        if (!BATCH_RECORDS) {
+            RIOSend(dest, Protocol.TXN_BATCH_PKT, record);
+            return;
+        }
+
+        ByteArrayOutputStream out = outgoing.get(dest);
+        if (out == null) {
+            out = new ByteArrayOutputStream();
+            outgoing.put(dest, out);
+        }
+        out.write(record, 0, record.length);
+    }
+
+    /**
+     * @return The address of the coordinator of a transaction
+     */
+    private static int coordinatorOf(long id) {
+        return (int) (id & 0xff);
+    }
+
+    /**
+     * Add a timeout for the next round, which does nothing but keep the
+     * simulation going
+     */
+    private void addTick() {
+        try {
+            Method onTickMethod = Callback.getMethod("onTick", this,
+                    new String[0]);
+            addTimeout(new Callback(onTickMethod, this, new Object[0]), 1);
+            ticking = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * This function is called when the tick timeout is triggered.
+     */
+    public void onTick() {
+        ticking = false;
+    }
+
+    /**
+     * @return The stats of the transactions we coordinated since we started
+     */
+    public String report() {
+        long rounds = lastDecision - firstStart + 1;
+        int decided = committed + aborted;
+        String s = "committed: " + committed + ", aborted: " + aborted
+                + ", queued or in flight: " + (inFlight + queued.size());
+        if (decided > 0) {
+            s += ", rounds: " + rounds + ", commits/round: "
+                    + String.format("%.2f", (double) committed / rounds)
+                    + ", average latency: "
+                    + String.format("%.2f", (double) totalLatency / decided)
+                    + " rounds";
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        int[] counts = new int[State.values().length];
+        for (Txn txn : txns.values()) {
+            if (txn.state != null) {
+                ++counts[txn.state.ordinal()];
+            }
+        }
+        String s = "addr: " + addr;
+        for (State state : State.values()) {
+            s += ", " + state + ": " + counts[state.ordinal()];
+        }
+        return s + ", queued: " + queued.size() + ", " + report();
+    }
+
+    public void logError(String output) {
+        log(output, System.err);
+    }
+
+    public void logOutput(String output) {
+        log(output, System.out);
+    }
+
+    public void log(String output, PrintStream stream) {
+        stream.println("Node " + addr + ": " + output);
+    }
+}
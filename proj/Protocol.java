@@ -9,12 +9,18 @@ public class Protocol {
 	// TODO: make these enums so it's clearer when to use RIOPacket, or something else
 	public static final int DATA = 0;
 	public static final int ACK = 1;
+	public static final int SACK = 2;
+	public static final int BATCH = 3;
+	public static final int RESET = 4;
+	public static final int BCAST = 5;
 
 	// Protocols for 2PC
 	public static final int VOTEREQ_PKT = 10;
 	public static final int VOTE_PKT = 11;
 	public static final int DECISION_PKT = 12;
 	public static final int DECISIONREQ_PKT = 13;
+	// the records for a peer, of many transactions, sent together
+	public static final int TXN_BATCH_PKT = 14;
 
 	// Protocols for Testing Reliable in-order message delivery
 	// These should be RIOPacket protocols
@@ -30,7 +36,7 @@ public class Protocol {
 	 * @return true if the protocol is valid, false otherwise
 	 */
 	public static boolean isPktProtocolValid(int protocol) {
-		return (protocol == DATA || protocol == ACK || protocol == VOTEREQ_PKT
+		return (protocol == DATA || protocol == ACK || protocol == SACK || protocol == BATCH || protocol == RESET || protocol == BCAST || protocol == VOTEREQ_PKT
 				|| protocol == VOTE_PKT || protocol == DECISION_PKT || protocol == DECISIONREQ_PKT);
 	}
 
@@ -45,7 +51,8 @@ public class Protocol {
 	 */
 	public static boolean isRIOProtocolValid(int protocol) {
 		return (protocol == VOTEREQ_PKT || protocol == VOTE_PKT
-				|| protocol == DECISION_PKT || protocol == DECISIONREQ_PKT || protocol == RIOTEST_PKT);
+				|| protocol == DECISION_PKT || protocol == DECISIONREQ_PKT || protocol == TXN_BATCH_PKT
+				|| protocol == RIOTEST_PKT);
 	}
 
 	/**
@@ -63,6 +70,14 @@ public class Protocol {
 			return "RIO Data Packet";
 		case ACK:
 			return "RIO Acknowledgement Packet";
+		case SACK:
+			return "RIO Selective Acknowledgement Packet";
+		case BATCH:
+			return "RIO Batch Packet";
+		case RESET:
+			return "RIO Session Reset Packet";
+		case BCAST:
+			return "RIO Broadcast Packet";
 		case VOTEREQ_PKT:
 			return "Vote Request Packet";
 		case VOTE_PKT:
@@ -71,6 +86,8 @@ public class Protocol {
 			return "Coordinator Decision Packet";
 		case DECISIONREQ_PKT:
 			return "Decision Request Packet";
+		case TXN_BATCH_PKT:
+			return "Transaction Batch Packet";
 		case RIOTEST_PKT:
 			return "RIO Testing Packet";
 		default:
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A windowed acknowledgement for the reliable, in-order message layer. It
+ * carries the highest sequence number delivered in order, which acknowledges
+ * every packet up to it, and a selective acknowledgement (SACK) bitmap of the
+ * packets received out of order after it, and the receiver's window: how
+ * many sequence numbers past the cumulative ACK it is willing to hold.
+ *
+ * Bit i of the bitmap stands for sequence number cumulativeSeqNum + 1 + i.
+ * Bit 0 is never set, as that packet would have been delivered in order.
+ */
+public class RIOAckPacket {
+
+	public static final int HEADER_SIZE = 8;
+	// packets further than this past the cumulative ACK are not SACKed
+	public static final int MAX_SACK_BITS = 1024;
+
+	private int cumulativeSeqNum;
+	private int window;
+	private BitSet sack;
+
+	/**
+	 * Constructing a new ACK packet.
+	 *
+	 * @param cumulativeSeqNum
+	 *            The highest sequence number delivered in order, or -1 if none
+	 * @param window
+	 *            The receiver's window
+	 * @param sack
+	 *            The bitmap of packets received out of order
+	 */
+	public RIOAckPacket(int cumulativeSeqNum, int window, BitSet sack) throws IllegalArgumentException {
+		if (window < 0 || sack.length() > MAX_SACK_BITS) {
+			throw new IllegalArgumentException("Illegal arguments given to RIOAckPacket");
+		}
+
+		this.cumulativeSeqNum = cumulativeSeqNum;
+		this.window = window;
+		this.sack = sack;
+	}
+
+	/**
+	 * @return The highest sequence number delivered in order
+	 */
+	public int getCumulativeSeqNum() {
+		return this.cumulativeSeqNum;
+	}
+
+	/**
+	 * @return How many sequence numbers past the cumulative ACK the receiver
+	 *         is willing to hold
+	 */
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * @return True if the receiver holds packets past the cumulative ACK
+	 */
+	public boolean hasSack() {
+		return !this.sack.isEmpty();
+	}
+
+	/**
+	 * @param seqNum
+	 *            A sequence number
+	 * @return True if this ACK acknowledges seqNum, either cumulatively or
+	 *         selectively
+	 */
+	public boolean covers(int seqNum) {
+		if (seqNum <= cumulativeSeqNum) {
+			return true;
+		}
+		return sack.get(seqNum - cumulativeSeqNum - 1);
+	}
+
+	/**
+	 * @param seqNum
+	 *            A sequence number past the cumulative ACK
+	 * @return The first sequence number from seqNum on that this ACK
+	 *         acknowledges selectively, or -1 if none
+	 */
+	public int nextSacked(int seqNum) {
+		int bit = sack.nextSetBit(seqNum - cumulativeSeqNum - 1);
+		return bit < 0 ? -1 : cumulativeSeqNum + 1 + bit;
+	}
+
+	/**
+	 * Convert the ACK into a byte array for sending over the wire.
+	 * Format:
+	 *        cumulative sequence number = 4 bytes
+	 *        window = 4 bytes
+	 *        SACK bitmap, little-endian = the rest, up to the highest set bit
+	 * @return A byte[] for transporting over the wire
+	 */
+	public byte[] pack() {
+		byte[] bitmap = sack.toByteArray();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + bitmap.length);
+		buf.putInt(cumulativeSeqNum);
+		buf.putInt(window);
+		buf.put(bitmap);
+		return buf.array();
+	}
+
+	/**
+	 * Unpacks a byte array to create an ACK packet
+	 * Assumes the array has been formatted using pack method in RIOAckPacket
+	 * @param packet The byte[] representation of the ACK
+	 * @return RIOAckPacket object created or null if the byte[] representation was corrupted
+	 */
+	public static RIOAckPacket unpack(byte[] packet) {
+		return decode(packet, 0, packet.length);
+	}
+
+	/**
+	 * Decodes an ACK packet from part of an array, formatted by pack()
+	 * @param buf The array that holds the ACK
+	 * @param offset Where the ACK starts in the array
+	 * @param length The length of the ACK
+	 * @return RIOAckPacket object created or null if the representation was corrupted
+	 */
+	public static RIOAckPacket decode(byte[] buf, int offset, int length) {
+		if (length < HEADER_SIZE || offset < 0 || offset > buf.length - length) {
+			return null;
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(buf, offset, length);
+		int cumulativeSeqNum = bytes.getInt();
+		int window = bytes.getInt();
+		BitSet sack = BitSet.valueOf(bytes);
+		try {
+			return new RIOAckPacket(cumulativeSeqNum, window, sack);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * String representation of an ACK packet
+	 */
+	public String toString() {
+		return "rio-ack:" + this.cumulativeSeqNum + " rio-window:" + this.window + " rio-sack:" + this.sack;
+	}
+}
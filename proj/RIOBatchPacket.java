@@ -0,0 +1,151 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A batch of RIOPackets for the same destination, sent together in one
+ * Packet, along with the sender's ACK for data going the other way, if it
+ * has one to send.
+ */
+public class RIOBatchPacket {
+
+	private RIOAckPacket ack;
+	private List<RIOPacket> packets;
+
+	/**
+	 * Constructing a new batch.
+	 *
+	 * @param ack
+	 *            The piggybacked ACK, or null if there is none
+	 * @param packets
+	 *            The packets of the batch, in order
+	 */
+	public RIOBatchPacket(RIOAckPacket ack, List<RIOPacket> packets) {
+		this.ack = ack;
+		this.packets = packets;
+	}
+
+	/**
+	 * @return The piggybacked ACK, or null if there is none
+	 */
+	public RIOAckPacket getAck() {
+		return this.ack;
+	}
+
+	/**
+	 * @return The packets of the batch, in order
+	 */
+	public List<RIOPacket> getPackets() {
+		return this.packets;
+	}
+
+	/**
+	 * @return The number of bytes that the batch takes on the wire
+	 */
+	public int getPackedSize() {
+		int size = 2 + (ack == null ? 0 : ack.pack().length);
+		for (RIOPacket p : packets) {
+			size += 4 + p.getPackedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Convert the batch into a byte array for sending over the wire.
+	 * Format:
+	 *        ACK length, or 0 if there is none = 2 bytes
+	 *        packed RIOAckPacket = ACK length bytes
+	 *        then for every RIOPacket:
+	 *            packed length = 4 bytes
+	 *            packed RIOPacket = packed length bytes
+	 * @return A byte[] for transporting over the wire
+	 */
+	public byte[] pack() {
+		byte[] packed = new byte[getPackedSize()];
+		encode(packed, 0);
+		return packed;
+	}
+
+	/**
+	 * Write the batch into an array, in the format of pack().
+	 * @param dst The array to write to
+	 * @param offset Where to start writing. There must be getPackedSize() bytes of room
+	 */
+	public void encode(byte[] dst, int offset) {
+		byte[] ackBytes = ack == null ? new byte[0] : ack.pack();
+		ByteBuffer buf = ByteBuffer.wrap(dst);
+		buf.position(offset);
+		buf.putShort((short) ackBytes.length);
+		buf.put(ackBytes);
+		for (RIOPacket p : packets) {
+			buf.putInt(p.getPackedSize());
+			buf.position(buf.position() + p.encode(dst, buf.position()));
+		}
+	}
+
+	/**
+	 * Unpacks a byte array to create a batch
+	 * Assumes the array has been formatted using pack method in RIOBatchPacket
+	 * @param packet The byte[] representation of the batch
+	 * @return RIOBatchPacket object created or null if the byte[] representation was corrupted
+	 */
+	public static RIOBatchPacket unpack(byte[] packet) {
+		return unpack(packet, 0);
+	}
+
+	/**
+	 * Unpacks a batch from the end of an array, formatted by pack().
+	 * The payloads of the packets are slices of the array, which are not copied.
+	 * @param packet The array that holds the batch
+	 * @param offset Where the batch starts in the array
+	 * @return RIOBatchPacket object created or null if the representation was corrupted
+	 */
+	public static RIOBatchPacket unpack(byte[] packet, int offset) {
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(packet);
+			buf.position(offset);
+
+			RIOAckPacket ack = null;
+			int ackLen = buf.getShort() & 0xffff;
+			if (ackLen > 0) {
+				ack = RIOAckPacket.decode(packet, buf.position(), ackLen);
+				if (ack == null) {
+					return null;
+				}
+				buf.position(buf.position() + ackLen);
+			}
+
+			LinkedList<RIOPacket> packets = new LinkedList<RIOPacket>();
+			while (buf.hasRemaining()) {
+				int len = buf.getInt();
+				RIOPacket pkt = RIOPacket.decode(packet, buf.position(), len);
+				if (pkt == null) {
+					return null;
+				}
+				buf.position(buf.position() + len);
+				packets.add(pkt);
+			}
+			return new RIOBatchPacket(ack, packets);
+		} catch (BufferUnderflowException e) {
+			// will return null
+		} catch (IllegalArgumentException e) {
+			// will return null
+		}
+		return null;
+	}
+
+	/**
+	 * String representation of a batch
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer("rio-batch:");
+		if (ack != null) {
+			sb.append(" [" + ack + "]");
+		}
+		for (RIOPacket p : packets) {
+			sb.append(" [" + p + "]");
+		}
+		return sb.toString();
+	}
+}
@@ -1,3 +1,5 @@
+import java.util.BitSet;
+
 import edu.washington.cs.cse490h.lib.Node;
 
 /**
@@ -22,9 +24,22 @@ public abstract class RIONode extends Node {
 			RIOLayer.RIODataReceive(from, msg);
 		}else if(protocol == Protocol.ACK) {
 			RIOLayer.RIOAckReceive(from, msg);
+		}else if(protocol == Protocol.SACK) {
+			RIOLayer.RIOSackReceive(from, msg);
+		}else if(protocol == Protocol.BATCH) {
+			RIOLayer.RIOBatchReceive(from, msg);
+		}else if(protocol == Protocol.RESET) {
+			RIOLayer.RIOResetReceive(from, msg);
+		}else if(protocol == Protocol.BCAST) {
+			RIOLayer.RIOBroadcastReceive(from, msg);
 		}
 	}
 
+	@Override
+	public void onRoundEnd() {
+		RIOLayer.onRoundEnd();
+	}
+
 	/**
 	 * Send a message using the reliable, in-order delivery layer
 	 * 
@@ -39,8 +54,37 @@ public abstract class RIONode extends Node {
 		RIOLayer.RIOSend(destAddr, protocol, payload);
 	}
 
+	/**
+	 * Send a message to a group of nodes using the reliable, in-order
+	 * delivery layer. Each member gets it in order with the other messages
+	 * sent to it.
+	 * 
+	 * @param destAddrs
+	 *            The addresses to send to. This node is skipped
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @return The id of the broadcast, for getRIOUndeliveredMembers
+	 */
+	public int RIOBroadcast(int[] destAddrs, int protocol, byte[] payload) {
+		return RIOLayer.RIOBroadcast(destAddrs, protocol, payload);
+	}
+
+	/**
+	 * @param broadcastId
+	 *            The id of a broadcast
+	 * @return The members that have not delivered the broadcast yet, as far
+	 *         as their ACKs tell
+	 */
+	public BitSet getRIOUndeliveredMembers(int broadcastId) {
+		return RIOLayer.getUndeliveredMembers(broadcastId);
+	}
+
 	/**
 	 * Method that is called by the RIO layer when a message is to be delivered.
+	 * The delivery is made durable once this returns, so a message is only
+	 * delivered again if the node crashes while handling it.
 	 * 
 	 * @param from
 	 *            The address from which the message was received
@@ -50,6 +94,75 @@ public abstract class RIONode extends Node {
 	 *            The message that was received
 	 */
 	public abstract void onRIOReceive(Integer from, int protocol, byte[] msg);
+
+	/**
+	 * Method that is called by the RIO layer, in order, with each fragment of
+	 * a message too large for one packet. By default, the fragments are
+	 * reassembled and the whole message is passed to onRIOReceive. Nodes
+	 * that receive large transfers can override this to consume them
+	 * incrementally instead.
+	 * 
+	 * @param from
+	 *            The address from which the fragment was received
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param fragment
+	 *            The fragment that was received
+	 * @param last
+	 *            Whether this is the last fragment of the message
+	 */
+	public void onRIOReceiveFragment(Integer from, int protocol, byte[] fragment, boolean last) {
+		RIOLayer.reassemble(from, protocol, fragment, last);
+	}
+
+	/**
+	 * Method that is called by the RIO layer when it starts a new session
+	 * with a node, because it restarted or we never talked before, before any
+	 * message of the session is delivered. The messages that the node had not
+	 * sent before it restarted are lost. The messages to the node pick up
+	 * after the last one it delivered.
+	 * 
+	 * @param peer
+	 *            The address of the node
+	 * @param peerEpoch
+	 *            The epoch of the node, which is 0 for its first start
+	 */
+	public void onRIOSessionStart(Integer peer, int peerEpoch) {
+	}
+
+	/**
+	 * @param peer
+	 *            The address of a node
+	 * @return The state last set with setRIOReceiveState for the messages
+	 *         from peer, which survives crashes, or null if there is none
+	 */
+	public byte[] getRIOReceiveState(int peer) {
+		return RIOLayer.getReceiveState(peer);
+	}
+
+	/**
+	 * Set the state that this node keeps for the messages from a node. Call
+	 * it from onRIOReceive: the state is made durable in the same write as
+	 * the delivery of the message, so after a crash it reflects exactly the
+	 * messages that will not be delivered again.
+	 * 
+	 * @param peer
+	 *            The address of the node
+	 * @param state
+	 *            The state
+	 */
+	public void setRIOReceiveState(int peer, byte[] state) {
+		RIOLayer.setReceiveState(peer, state);
+	}
+
+	/**
+	 * @return The epoch of this node in the RIO layer, which is 0 for its
+	 *         first start and grows with every restart, or -1 if the layer
+	 *         could not start
+	 */
+	public int getRIOEpoch() {
+		return RIOLayer.getEpoch();
+	}
 	
 	@Override
 	public String toString() {
@@ -1,8 +1,5 @@
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import edu.washington.cs.cse490h.lib.Packet;
 import edu.washington.cs.cse490h.lib.Utility;
@@ -11,16 +8,30 @@ import edu.washington.cs.cse490h.lib.Utility;
  * This conveys the header for reliable, in-order message transfer. This is
  * carried in the payload of a Packet, and in turn the data being transferred is
  * carried in the payload of the RIOPacket packet.
+ *
+ * The payload can be a slice of a larger array, such as the message it is a
+ * fragment of, or the bytes it was decoded from, so that neither fragmenting
+ * nor decoding copies it. It is only copied out if getPayload() is called on
+ * a slice. pack() keeps the array it returns, and the channels keep the
+ * frames they send, so resends do not encode a packet again. Packets are
+ * never modified, and neither should the arrays they hand out be.
  */
 public class RIOPacket {
 
 	public static final int MAX_PACKET_SIZE = Packet.MAX_PAYLOAD_SIZE;
 	public static final int HEADER_SIZE = 5;
 	public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;
+	// set in the protocol byte of every fragment of a message but the last
+	public static final int MORE_FRAGMENTS = 0x80;
 
 	private int protocol;
 	private int seqNum;
 	private byte[] payload;
+	private int payloadOffset;
+	private int payloadLength;
+	private boolean moreFragments;
+	// the encoded packet, once it has been encoded
+	private byte[] packed;
 
 	/**
 	 * Constructing a new RIO packet.
@@ -29,13 +40,31 @@ public class RIOPacket {
 	 * @param payload The payload of the packet.
 	 */
 	public RIOPacket(int protocol, int seqNum, byte[] payload) throws IllegalArgumentException {
-		if (!Protocol.isRIOProtocolValid(protocol) || payload.length > MAX_PAYLOAD_SIZE) {
+		this(protocol, seqNum, payload, 0, payload.length, false);
+	}
+
+	/**
+	 * Constructing a new RIO packet whose payload is a slice of an array,
+	 * such as a fragment of a message.
+	 * @param protocol The protocol of the message
+	 * @param seqNum The sequence number of the packet
+	 * @param payload The array that holds the payload
+	 * @param offset Where the payload starts in the array
+	 * @param length The length of the payload
+	 * @param moreFragments Whether more fragments of the message follow
+	 */
+	public RIOPacket(int protocol, int seqNum, byte[] payload, int offset, int length, boolean moreFragments) throws IllegalArgumentException {
+		if (!Protocol.isRIOProtocolValid(protocol) || length > MAX_PAYLOAD_SIZE
+				|| offset < 0 || length < 0 || offset > payload.length - length) {
 			throw new IllegalArgumentException("Illegal arguments given to RIOPacket");
 		}
 
 		this.protocol = protocol;
 		this.seqNum = seqNum;
 		this.payload = payload;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
+		this.moreFragments = moreFragments;
 	}
 
 	/**
@@ -44,7 +73,7 @@ public class RIOPacket {
 	public int getProtocol() {
 		return this.protocol;
 	}
-	
+
 	/**
 	 * @return The sequence number
 	 */
@@ -53,36 +82,82 @@ public class RIOPacket {
 	}
 
 	/**
-	 * @return The payload
+	 * @return The payload. If it is a slice of a larger array, it is copied
+	 *         out the first time
 	 */
 	public byte[] getPayload() {
+		if (this.payloadOffset != 0 || this.payloadLength != this.payload.length) {
+			this.payload = Arrays.copyOfRange(this.payload, this.payloadOffset, this.payloadOffset + this.payloadLength);
+			this.payloadOffset = 0;
+		}
 		return this.payload;
 	}
 
+	/**
+	 * @return A read-only view of the payload, without copying it
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(this.payload, this.payloadOffset, this.payloadLength).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The length of the payload
+	 */
+	public int getPayloadLength() {
+		return this.payloadLength;
+	}
+
+	/**
+	 * @return True if the payload is a fragment of a message, and more
+	 *         fragments of it follow
+	 */
+	public boolean hasMoreFragments() {
+		return this.moreFragments;
+	}
+
+	/**
+	 * @return The number of bytes that the packet takes on the wire
+	 */
+	public int getPackedSize() {
+		return HEADER_SIZE + this.payloadLength;
+	}
+
+	/**
+	 * Write the packet into an array, in the format of pack().
+	 * @param buf The array to write to
+	 * @param offset Where to start writing. There must be getPackedSize() bytes of room
+	 * @return The number of bytes written
+	 */
+	public int encode(byte[] buf, int offset) {
+		if (this.packed != null) {
+			System.arraycopy(this.packed, 0, buf, offset, this.packed.length);
+			return this.packed.length;
+		}
+		buf[offset] = (byte) (moreFragments ? protocol | MORE_FRAGMENTS : protocol);
+		buf[offset + 1] = (byte) (seqNum >>> 24);
+		buf[offset + 2] = (byte) (seqNum >>> 16);
+		buf[offset + 3] = (byte) (seqNum >>> 8);
+		buf[offset + 4] = (byte) seqNum;
+		System.arraycopy(this.payload, this.payloadOffset, buf, offset + HEADER_SIZE, this.payloadLength);
+		return getPackedSize();
+	}
+
 	/**
 	 * Convert the RIOPacket packet object into a byte array for sending over the wire.
 	 * Format:
-	 *        protocol = 1 byte
+	 *        protocol, with MORE_FRAGMENTS set if more fragments follow = 1 byte
 	 *        sequence number = 4 bytes
 	 *        payload <= MAX_PAYLOAD_SIZE bytes
-	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
+	 * The array is kept, and returned again by later calls.
+	 * @return A byte[] for transporting over the wire
 	 */
 	public byte[] pack() {
-		try {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(byteStream);
-
-			out.writeByte(protocol);
-			out.writeInt(seqNum);
-
-			out.write(payload, 0, payload.length);
-
-			out.flush();
-			out.close();
-			return byteStream.toByteArray();
-		} catch (IOException e) {
-			return null;
+		if (this.packed == null) {
+			byte[] buf = new byte[getPackedSize()];
+			encode(buf, 0);
+			this.packed = buf;
 		}
+		return this.packed;
 	}
 
 	/**
@@ -92,32 +167,42 @@ public class RIOPacket {
 	 * @return RIOPacket object created or null if the byte[] representation was corrupted
 	 */
 	public static RIOPacket unpack(byte[] packet) {
-		try {
-			DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
-
-			int protocol = in.readByte();
-			int seqNum = in.readInt();
+		return decode(packet, 0, packet.length);
+	}
 
-			byte[] payload = new byte[packet.length - HEADER_SIZE];
-			int bytesRead = in.read(payload, 0, payload.length);
+	/**
+	 * Decodes a packet from part of an array, formatted by pack(). The
+	 * payload of the packet is a slice of the array, which is not copied.
+	 * @param buf The array that holds the packet
+	 * @param offset Where the packet starts in the array
+	 * @param length The length of the packet
+	 * @return RIOPacket object created or null if the representation was corrupted
+	 */
+	public static RIOPacket decode(byte[] buf, int offset, int length) {
+		if (length < HEADER_SIZE || offset < 0 || offset > buf.length - length) {
+			return null;
+		}
+		int protocol = buf[offset] & 0xff;
+		boolean moreFragments = (protocol & MORE_FRAGMENTS) != 0;
+		protocol &= ~MORE_FRAGMENTS;
+		int seqNum = ((buf[offset + 1] & 0xff) << 24) | ((buf[offset + 2] & 0xff) << 16)
+				| ((buf[offset + 3] & 0xff) << 8) | (buf[offset + 4] & 0xff);
 
-			if (bytesRead != payload.length) {
-				return null;
+		try {
+			RIOPacket pkt = new RIOPacket(protocol, seqNum, buf, offset + HEADER_SIZE, length - HEADER_SIZE, moreFragments);
+			if (offset == 0 && length == buf.length) {
+				pkt.packed = buf;
 			}
-
-			return new RIOPacket(protocol, seqNum, payload);
+			return pkt;
 		} catch (IllegalArgumentException e) {
-			// will return null
-		} catch(IOException e) {
-			// will return null
+			return null;
 		}
-		return null;
 	}
 
 	/**
 	 * String representation of a RIOPacket
 	 */
 	public String toString() {
-		return "rio-proto:" + this.protocol + " rio-seqNum:" + this.seqNum + " rio-payload:" + Utility.byteArrayToString(this.payload); 
+		return "rio-proto:" + this.protocol + " rio-seqNum:" + this.seqNum + (this.moreFragments ? " rio-more" : "") + " rio-payload:" + Utility.byteArrayToString(this.payload, this.payloadOffset, this.payloadLength);
 	}
 }
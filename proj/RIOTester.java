@@ -11,11 +11,13 @@ import edu.washington.cs.cse490h.lib.Utility;
  * continues until we send at least 100 messages to another node.
  */
 public class RIOTester extends RIONode {
-	// The RIO layer is not correct in the presence of node failures.
-	public static double getFailureRate() { return 0/100.0; }
+	// Nodes that restart do not send again, but keep receiving
+	public static double getFailureRate() { return 1/100.0; }
 	public static double getDropRate() { return 25/100.0; }
 	public static double getDelayRate() { return 50/100.0; }
 
+	// the last number received from each sender, which the RIO layer keeps
+	// across restarts
 	private HashMap<Integer, Integer> receivedNums;
 	private HashMap<Integer, Integer> nextNum;
 	private Random randNumGen;
@@ -28,7 +30,8 @@ public class RIOTester extends RIONode {
 	
 	@Override
 	public String packetBytesToString(byte[] bytes) {
-		RIOPacket packet = RIOPacket.unpack(bytes);
+		RIOPacket packet = RIOPacket.decode(bytes, ReliableInOrderMsgLayer.SESSION_HEADER_SIZE,
+				bytes.length - ReliableInOrderMsgLayer.SESSION_HEADER_SIZE);
 		if (packet == null) {
 			return super.packetBytesToString(bytes);
 		}
@@ -67,6 +70,14 @@ public class RIOTester extends RIONode {
 		}
 		Integer i = Integer.parseInt(Utility.byteArrayToString(msg));
 		Integer receivedNum = receivedNums.get(from);
+		if (receivedNum == null) {
+			byte[] state = getRIOReceiveState(from);
+			if (state != null) {
+				// We got messages from this sender before we restarted
+				receivedNum = Integer.parseInt(Utility.byteArrayToString(state));
+				receivedNums.put(from, receivedNum);
+			}
+		}
 		if (receivedNum == null) {
 			// If we've never seen this sender before
 			if (i == 0) {
@@ -95,6 +106,7 @@ public class RIOTester extends RIONode {
 	public void correctReceive(int from, int i) {
 		logOutput("Correctly Received " + i + " from " + from);
 		receivedNums.put(from, i);
+		setRIOReceiveState(from, Utility.stringToByteArray("" + i));
 		
 		for (int j = 0; j < NUM_NODES ; ++j) {
 			if (!receivedNums.containsKey(j)) {
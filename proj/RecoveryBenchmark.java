@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.PrintStream;
+
+import edu.washington.cs.cse490h.lib.Node;
+
+/**
+ * <pre>
+ * Measures how long a 2PC node takes to recover its TwoPCLog as its history
+ * grows. The command "bench N" writes the log of N committed transactions
+ * twice, once with checkpoints and once without, then recovers both and
+ * prints how many records each recovery read and how long it took.
+ *
+ * With checkpoints, recovery reads the latest checkpoint and the records
+ * after it, so its time should stay flat as N grows. Without them, it reads
+ * the whole history.
+ *
+ * See scripts/RecoveryBench and sim_recovery_bench.sh.
+ * </pre>
+ */
+public class RecoveryBenchmark extends Node {
+    // crashes would only get in the way of the measurements
+    public static double getFailureRate() {
+        return 0 / 100.0;
+    }
+
+    public static double getRecoveryRate() {
+        return 0 / 100.0;
+    }
+
+    // transactions remembered by the checkpoints
+    public static int REMEMBERED_TXNS = 16;
+    // recoveries timed per log; the fastest one is reported
+    public static int REPEAT = 5;
+
+    @Override
+    public void start() {
+        logOutput("Ready to benchmark recovery");
+    }
+
+    @Override
+    public void onReceive(Integer from, int protocol, byte[] msg) {
+    }
+
+    @Override
+    public void onCommand(String command) {
+        String[] args = command.split(" ");
+        if (args.length != 2 || !args[0].equals("bench")) {
+            logError("Unrecognized command: " + command);
+            return;
+        }
+
+        try {
+            int history = Integer.parseInt(args[1]);
+            bench("ckpt" + history, history, TwoPCLog.CHECKPOINT_INTERVAL);
+            bench("full" + history, history, 0);
+        } catch (NumberFormatException e) {
+            logError("Not a number of transactions: " + args[1]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Write the log of a number of transactions, then time its recovery.
+     *
+     * @param name
+     *            The name of the log
+     * @param history
+     *            The number of transactions
+     * @param checkpointInterval
+     *            Records between checkpoints, or 0 for none
+     */
+    private void bench(String name, int history, int checkpointInterval)
+            throws IOException {
+        TwoPCLog log = new TwoPCLog(this, name, checkpointInterval);
+        for (int txn = 0; txn < history; ++txn) {
+            log.logStart(txn);
+            log.logDecision(txn, Node2PC.Decision.COMMIT);
+            log.forget(txn - REMEMBERED_TXNS);
+        }
+        log.close();
+
+        long best = Long.MAX_VALUE;
+        int recordsRead = 0;
+        for (int i = 0; i < REPEAT; ++i) {
+            long start = System.nanoTime();
+            log = new TwoPCLog(this, name, checkpointInterval);
+            log.recover();
+            best = Math.min(best, System.nanoTime() - start);
+            recordsRead = log.getRecordsRead();
+            log.close();
+        }
+
+        logOutput(String.format("history: %d checkpoints: %s records read: "
+                + "%d recovery: %d us", history, checkpointInterval > 0,
+                recordsRead, best / 1000));
+    }
+
+    public void logError(String output) {
+        log(output, System.err);
+    }
+
+    public void logOutput(String output) {
+        log(output, System.out);
+    }
+
+    public void log(String output, PrintStream stream) {
+        stream.println("Node " + addr + ": " + output);
+    }
+}
@@ -1,8 +1,20 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
 
 import edu.washington.cs.cse490h.lib.Callback;
+import edu.washington.cs.cse490h.lib.KVStore;
+import edu.washington.cs.cse490h.lib.PersistentStorageReader;
+import edu.washington.cs.cse490h.lib.PersistentStorageWriter;
 import edu.washington.cs.cse490h.lib.Utility;
 
 /**
@@ -12,12 +24,136 @@ import edu.washington.cs.cse490h.lib.Utility;
  * 
  * At a minimum, the student should extend/modify this layer to provide
  * reliable, in-order message delivery, even in the presence of node failures.
+ * 
+ * By default, every data packet is ACKed as soon as it arrives, and resent
+ * if its ACK has not come back after TIMEOUT rounds. With WINDOWED set, data
+ * packets are not ACKed one by one. Instead, ACK_DELAY rounds after a channel
+ * first gets data, the receiver sends a single SACK packet at the end of the
+ * round, with the highest sequence number it has delivered in order and a
+ * bitmap of the packets it holds out of order. The sender releases all of the
+ * packets that it covers, and waits that much longer before resending.
+ * 
+ * With ADAPTIVE_TIMEOUT set, each outgoing channel estimates its round trip
+ * time, in rounds, from the ACKs of packets that were sent only once (Karn's
+ * rule), and resends after SRTT + 4 * RTTVAR rounds, kept between
+ * MIN_TIMEOUT and MAX_TIMEOUT. Every round in which packets time out doubles
+ * the channel's timeout, up to MAX_TIMEOUT, until the next ACK. Until the
+ * first estimate, and without ADAPTIVE_TIMEOUT, the timeout is a fixed
+ * getTimeout() rounds.
+ * 
+ * With BATCHING set, messages are not sent right away. At the end of the
+ * round, all of the messages for a destination go out together in BATCH
+ * packets of up to MTU bytes, the first of which carries the ACK for the data
+ * that came from it, if it is owed one. Resends that time out together also
+ * go out together. A packet too large to share a BATCH goes out alone.
+ * 
+ * Each incoming channel holds the packets that arrive out of order in a
+ * window of RECEIVE_WINDOW slots past the last packet delivered. Packets
+ * further ahead are dropped, and left for the sender to resend.
+ * 
+ * In windowed mode, each outgoing channel never sends past the window that
+ * the receiver advertises in its ACKs. With CONGESTION_CONTROL set, it also
+ * keeps at most cwnd packets unACKed. Messages beyond either window wait in
+ * the channel's send queue. cwnd starts at INITIAL_CWND and doubles every
+ * round trip until the first loss, then grows by about one packet per round
+ * trip. It is halved, at most once per round trip, when packets time out, or
+ * when DUP_ACK_THRESHOLD ACKs in a row fail to move the cumulative ACK past a
+ * hole, in which case the packet in the hole is resent right away.
+ * 
+ * Messages whose packets would be larger than MTU bytes, headers included,
+ * are split into fragments, each sent in its own sequenced packet, so that a
+ * lost fragment is resent alone. Messages that fit in one packet are
+ * delivered whole to onRIOReceive. The fragments of larger ones are passed,
+ * in order, to onRIOReceiveFragment, which by default reassembles them in a
+ * buffer taken from a pool of REASSEMBLY_POOL_SIZE, and passes the whole
+ * message to onRIOReceive.
+ * 
+ * Channels survive crashes through epochs. Every time a node's layer starts,
+ * it takes the next epoch, and makes it durable in EPOCH_FILE before it
+ * sends anything. Every packet starts with a session header that carries the
+ * sender's epoch and the receiver's epoch as the sender knows it, and packets
+ * from or for an earlier incarnation are dropped. Every node that it ever had
+ * a session with is kept in PEERS_FILE, and gets a RESET as soon as the layer
+ * starts. A RESET carries the same header, the resume point of the channel
+ * from the node it is sent to, and whether the sender wants a RESET back.
+ * 
+ * Each incoming channel keeps its position in SESSIONS_STORE: the sender's
+ * epoch and the sequence number of the last message delivered, written once
+ * onRIOReceive returns, together with the state that the node keeps for the
+ * sender with setRIOReceiveState. A restarted node picks up every channel
+ * from there, and a message is only delivered again if the node crashed
+ * before it was done with it, in which case that state does not reflect it
+ * either. Positions are durable before they are ACKed.
+ * 
+ * When a node learns a new epoch for a peer, it starts a new session with
+ * it. The channel from the peer starts again from sequence number 0, as the
+ * peer lost what it had not sent. The channel to the peer stops, and ignores
+ * ACKs, until a RESET from the peer names our epoch. It then forgets the
+ * messages up to the resume point, and sends the rest again with the same
+ * sequence numbers, including the packets that the peer had ACKed out of
+ * order. Nothing that the peer delivered is delivered twice, and a restart
+ * is resynchronized within a round trip. onRIOSessionStart tells the node
+ * about every new session, before any message of it is delivered.
+ * 
+ * RIOBroadcast sends a message reliably to a group of nodes, in order with
+ * the other messages to each of them. The message is queued on the channel
+ * to every member, and the members whose channels can send it right away
+ * get it in a single BCAST packet, sent with Node.broadcast, that carries
+ * its sequence number on each of their channels. Each member ACKs it along
+ * with the rest of its channel, and only the members whose channels time
+ * out get it again, alone. The broadcast keeps a bitmap of the members that
+ * have not delivered it, until all have.
  */
 public class ReliableInOrderMsgLayer {
 	public static int TIMEOUT = 3;
+	public static boolean WINDOWED = false;
+	public static int ACK_DELAY = 4;
+	public static boolean ADAPTIVE_TIMEOUT = false;
+	public static int MIN_TIMEOUT = 2;
+	public static int MAX_TIMEOUT = 16;
+	public static boolean BATCHING = false;
+	public static int RECEIVE_WINDOW = 256;
+	public static boolean CONGESTION_CONTROL = false;
+	public static double INITIAL_CWND = 4;
+	public static int DUP_ACK_THRESHOLD = 3;
+	public static int MTU = 1024;
+	public static int REASSEMBLY_POOL_SIZE = 4;
+	// larger reassembly buffers are not kept in the pool
+	public static int MAX_POOLED_BUFFER = 64 * 1024;
+	public static final int SESSION_HEADER_SIZE = 8;
+	// the epochs the node has taken, one per line, the last being current
+	public static final String EPOCH_FILE = "rio_epoch";
+	// the nodes that we ever had a session with, one per line
+	public static final String PEERS_FILE = "rio_peers";
+	// the position of every incoming channel, by the sender's address
+	public static final String SESSIONS_STORE = "rio_sessions";
 	
+	// this node's epoch, or -1 until the layer starts, the current epoch of
+	// every node we have a session with, and when we last sent each node a
+	// RESET
+	private int epoch;
+	private HashMap<Integer, Integer> peerEpochs;
+	private HashMap<Integer, Long> resetSendTimes;
+	private HashSet<Integer> knownPeers;
+	// the nodes that restarted, whose resume point we are waiting for
+	private HashSet<Integer> resuming;
+	// the positions of the incoming channels, whether some were written
+	// since they were last synced, and the node's state for every sender
+	private KVStore sessions;
+	private boolean sessionsUnsynced;
+	private HashMap<Integer, byte[]> receiveStates;
+	// the broadcasts that some members have not delivered yet, by id
+	private HashMap<Integer, Broadcast> broadcasts;
+	private int nextBroadcastId;
+	private int broadcastsDelivered;
+	private long broadcastRounds;
 	private HashMap<Integer, InChannel> inConnections;
 	private HashMap<Integer, OutChannel> outConnections;
+	// the nodes that are partway through sending us a fragmented message,
+	// and the buffers that we are reassembling their messages in
+	private HashSet<Integer> fragmenting;
+	private HashMap<Integer, ByteArrayOutputStream> reassembly;
+	private LinkedList<ByteArrayOutputStream> bufferPool;
 	private RIONode n;
 
 	/**
@@ -31,10 +167,298 @@ public class ReliableInOrderMsgLayer {
 	 *            The time that the ping was sent
 	 */
 	public ReliableInOrderMsgLayer(RIONode n) {
+		epoch = -1;
+		peerEpochs = new HashMap<Integer, Integer>();
+		resetSendTimes = new HashMap<Integer, Long>();
+		knownPeers = new HashSet<Integer>();
+		resuming = new HashSet<Integer>();
+		sessions = null;
+		sessionsUnsynced = false;
+		receiveStates = new HashMap<Integer, byte[]>();
+		broadcasts = new HashMap<Integer, Broadcast>();
+		nextBroadcastId = 0;
+		broadcastsDelivered = 0;
+		broadcastRounds = 0;
 		inConnections = new HashMap<Integer, InChannel>();
 		outConnections = new HashMap<Integer, OutChannel>();
+		fragmenting = new HashSet<Integer>();
+		reassembly = new HashMap<Integer, ByteArrayOutputStream>();
+		bufferPool = new LinkedList<ByteArrayOutputStream>();
 		this.n = n;
 	}
+
+	/**
+	 * @return The node that this layer belongs to
+	 */
+	RIONode getNode() {
+		return n;
+	}
+
+	/**
+	 * @return This node's epoch, starting the layer if it has not started
+	 *         yet, or -1 if it could not start
+	 */
+	public int getEpoch() {
+		start();
+		return epoch;
+	}
+
+	/**
+	 * Start the layer if it has not started yet, by taking the next epoch,
+	 * picking up the incoming channels where they were, and telling the
+	 * nodes we had sessions with about it. The epoch is durable before
+	 * anything is sent in it, so no two incarnations of the node share one.
+	 * This cannot be done in the constructor, as the node has no storage
+	 * yet.
+	 * 
+	 * @return True if the layer has started
+	 */
+	private boolean start() {
+		if(epoch >= 0) {
+			return true;
+		}
+		try{
+			int last = -1;
+			if(Utility.fileExists(n, EPOCH_FILE)) {
+				PersistentStorageReader reader = n.getReader(EPOCH_FILE);
+				String line;
+				while((line = reader.readLine()) != null) {
+					last = Integer.parseInt(line);
+				}
+				reader.close();
+			}
+			// append, so that a crash in the middle of the write can never
+			// take the epoch back
+			PersistentStorageWriter writer = n.getWriter(EPOCH_FILE, true);
+			writer.write((last + 1) + "\n");
+			writer.sync();
+			writer.close();
+			epoch = last + 1;
+			
+			if(Utility.fileExists(n, PEERS_FILE)) {
+				PersistentStorageReader reader = n.getReader(PEERS_FILE);
+				String line;
+				while((line = reader.readLine()) != null) {
+					knownPeers.add(Integer.parseInt(line));
+				}
+				reader.close();
+			}
+			sessions = n.getKVStore(SESSIONS_STORE);
+			for(String key: sessions.keySet()) {
+				int peer = Integer.parseInt(key);
+				ByteBuffer position = ByteBuffer.wrap(sessions.get(key));
+				peerEpochs.put(peer, position.getInt());
+				inConnections.put(peer, new InChannel(this, peer, position.getInt()));
+				if(position.hasRemaining()) {
+					byte[] state = new byte[position.remaining()];
+					position.get(state);
+					receiveStates.put(peer, state);
+				}
+			}
+			for(Integer peer: knownPeers) {
+				sendReset(peer);
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+			n.fail();
+		}
+		return epoch >= 0;
+	}
+
+	/**
+	 * Check the session header of a packet, and start a new session with the
+	 * sender if it has a new epoch. Packets from an earlier incarnation of
+	 * the sender are dropped, as are packets for an earlier incarnation of
+	 * ours, in which case the sender is told our epoch.
+	 * 
+	 * @param from
+	 *            The address from which the packet came
+	 * @param msg
+	 *            The packet, starting with the session header
+	 * @return True if the packet belongs to the current session
+	 */
+	private boolean acceptSession(int from, byte[] msg) {
+		if(!start() || msg.length < SESSION_HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.wrap(msg);
+		return acceptSession(from, header.getInt(), header.getInt());
+	}
+
+	/**
+	 * Check the epochs of a packet, as acceptSession(int, byte[]) does.
+	 * 
+	 * @param from
+	 *            The address from which the packet came
+	 * @param senderEpoch
+	 *            The sender's epoch
+	 * @param receiverEpoch
+	 *            Our epoch, as the sender knows it
+	 * @return True if the packet belongs to the current session
+	 */
+	private boolean acceptSession(int from, int senderEpoch, int receiverEpoch) {
+		if(!start()) {
+			return false;
+		}
+		Integer known = peerEpochs.get(from);
+		if(known != null && senderEpoch < known) {
+			return false;
+		}
+		if(receiverEpoch != epoch) {
+			sendReset(from);
+			return false;
+		}
+		if(known == null || senderEpoch > known) {
+			newSession(from, senderEpoch);
+		}
+		return true;
+	}
+
+	/**
+	 * Receive a RESET packet: learn the sender's epoch, resume the channel
+	 * to it if it restarted, and answer it if it does not know our epoch or
+	 * asks for an answer.
+	 * 
+	 * Format, after the session header:
+	 *        resume point: the last message delivered on the channel from
+	 *            the receiver in its current epoch, or -1 = 4 bytes
+	 *        whether the sender wants a RESET back = 1 byte
+	 * 
+	 * @param from
+	 *            The address from which the RESET came
+	 * @param msg
+	 *            The RESET
+	 */
+	public void RIOResetReceive(int from, byte[] msg) {
+		if(!start() || msg.length < SESSION_HEADER_SIZE + 5) {
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(msg);
+		int senderEpoch = buf.getInt();
+		int receiverEpoch = buf.getInt();
+		int resumePoint = buf.getInt();
+		boolean wantsReset = buf.get() != 0;
+		Integer known = peerEpochs.get(from);
+		if(known != null && senderEpoch < known) {
+			return;
+		}
+		if(known == null || senderEpoch > known) {
+			newSession(from, senderEpoch);
+		}
+		if(receiverEpoch == epoch && resuming.remove(from)) {
+			outConnections.get(from).resume(n, resumePoint);
+		}
+		if(receiverEpoch != epoch || wantsReset) {
+			sendReset(from);
+		}
+	}
+
+	/**
+	 * Send a node a RESET with our epoch, unless we already did this round.
+	 * 
+	 * @param destAddr
+	 *            The node to send it to
+	 */
+	private void sendReset(int destAddr) {
+		Long lastSent = resetSendTimes.get(destAddr);
+		if(lastSent != null && lastSent == n.now()) {
+			return;
+		}
+		resetSendTimes.put(destAddr, n.now());
+		InChannel in = inConnections.get(destAddr);
+		boolean wantsReset = !hasSession(destAddr) || resuming.contains(destAddr);
+		// the position we resume from is durable
+		syncSessions();
+		byte[] frame = newFrame(destAddr, 5);
+		ByteBuffer.wrap(frame, SESSION_HEADER_SIZE, 5)
+			.putInt(in == null ? -1 : in.getLastMessageDelivered())
+			.put((byte) (wantsReset ? 1 : 0));
+		n.send(destAddr, Protocol.RESET, frame);
+	}
+
+	/**
+	 * Start a new session with a node that has a new epoch: it numbers its
+	 * packets from 0 again, and the channel to it waits for its resume point.
+	 * 
+	 * @param peer
+	 *            The node
+	 * @param peerEpoch
+	 *            Its new epoch
+	 */
+	private void newSession(int peer, int peerEpoch) {
+		if(!knownPeers.contains(peer)) {
+			try{
+				PersistentStorageWriter writer = n.getWriter(PEERS_FILE, true);
+				writer.write(peer + "\n");
+				writer.close();
+				knownPeers.add(peer);
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		peerEpochs.put(peer, peerEpoch);
+		inConnections.remove(peer);
+		fragmenting.remove(peer);
+		reassembly.remove(peer);
+		OutChannel out = outConnections.get(peer);
+		if(out != null) {
+			out.suspend();
+			resuming.add(peer);
+		}
+		
+		n.onRIOSessionStart(peer, peerEpoch);
+	}
+
+	/**
+	 * @param peer
+	 *            A node
+	 * @return True if we know the epoch of the node, and can send to it
+	 */
+	boolean hasSession(int peer) {
+		return peerEpochs.containsKey(peer);
+	}
+
+	/**
+	 * @param peer
+	 *            A node
+	 * @return True if the node restarted, and the channel to it waits for its
+	 *         resume point
+	 */
+	boolean isResuming(int peer) {
+		return resuming.contains(peer);
+	}
+
+	/**
+	 * Make a packet for a node, that starts with the session header.
+	 * 
+	 * @param destAddr
+	 *            The node
+	 * @param bodySize
+	 *            How much room to leave after the header
+	 * @return The packet
+	 */
+	byte[] newFrame(int destAddr, int bodySize) {
+		byte[] frame = new byte[SESSION_HEADER_SIZE + bodySize];
+		Integer peerEpoch = peerEpochs.get(destAddr);
+		ByteBuffer.wrap(frame).putInt(epoch).putInt(peerEpoch == null ? -1 : peerEpoch);
+		return frame;
+	}
+
+	/**
+	 * Send a packet to a node, after the session header.
+	 * 
+	 * @param destAddr
+	 *            The node
+	 * @param protocol
+	 *            The protocol of the packet
+	 * @param body
+	 *            The packet
+	 */
+	private void sendFramed(int destAddr, int protocol, byte[] body) {
+		byte[] frame = newFrame(destAddr, body.length);
+		System.arraycopy(body, 0, frame, SESSION_HEADER_SIZE, body.length);
+		n.send(destAddr, protocol, frame);
+	}
 	
 	/**
 	 * Receive a data packet.
@@ -45,23 +469,228 @@ public class ReliableInOrderMsgLayer {
 	 *            The Packet of data
 	 */
 	public void RIODataReceive(int from, byte[] msg) {
-		RIOPacket riopkt = RIOPacket.unpack(msg);
+		if(!acceptSession(from, msg)) {
+			return;
+		}
+		RIOPacket riopkt = RIOPacket.decode(msg, SESSION_HEADER_SIZE, msg.length - SESSION_HEADER_SIZE);
+		if(riopkt != null) {
+			receivePacket(from, riopkt);
+		}
+	}
 
-		// at-most-once semantics
-		byte[] seqNumByteArray = Utility.stringToByteArray("" + riopkt.getSeqNum());
-		n.send(from, Protocol.ACK, seqNumByteArray);
+	/**
+	 * Receive a batch of data packets, and the ACK that came with them.
+	 * 
+	 * @param from
+	 *            The address from which the batch came
+	 * @param msg
+	 *            The packed RIOBatchPacket
+	 */
+	public void RIOBatchReceive(int from, byte[] msg) {
+		if(!acceptSession(from, msg)) {
+			return;
+		}
+		RIOBatchPacket batch = RIOBatchPacket.unpack(msg, SESSION_HEADER_SIZE);
+		if(batch == null) {
+			return;
+		}
 		
+		OutChannel out = outConnections.get(from);
+		if(batch.getAck() != null && out != null) {
+			out.gotACK(batch.getAck());
+		}
+		for(RIOPacket riopkt: batch.getPackets()) {
+			receivePacket(from, riopkt);
+		}
+	}
+
+	/**
+	 * Receive a broadcast packet, if we are one of its members.
+	 * 
+	 * @param from
+	 *            The address from which the broadcast came
+	 * @param msg
+	 *            The broadcast packet, in the format of RIOBroadcast
+	 */
+	public void RIOBroadcastReceive(int from, byte[] msg) {
+		try{
+			ByteBuffer buf = ByteBuffer.wrap(msg);
+			int senderEpoch = buf.getInt();
+			int numMembers = buf.get() & 0xff;
+			boolean member = false;
+			int receiverEpoch = -1;
+			int seqNum = -1;
+			for(int i = 0; i < numMembers; ++i) {
+				int addr = buf.get() & 0xff;
+				int memberEpoch = buf.getInt();
+				int memberSeqNum = buf.getInt();
+				if(addr == n.addr) {
+					member = true;
+					receiverEpoch = memberEpoch;
+					seqNum = memberSeqNum;
+				}
+			}
+			if(!member || !acceptSession(from, senderEpoch, receiverEpoch)) {
+				return;
+			}
+			int protocol = buf.get() & 0xff;
+			receivePacket(from, new RIOPacket(protocol, seqNum, msg, buf.position(), buf.remaining(), false));
+		}catch(BufferUnderflowException e) {
+			// corrupted, ignore it
+		}catch(IllegalArgumentException e) {
+			// corrupted, ignore it
+		}
+	}
+
+	/**
+	 * Take in a data packet, and deliver whatever it lets us deliver.
+	 * 
+	 * @param from
+	 *            The address from which the data packet came
+	 * @param riopkt
+	 *            The data packet
+	 */
+	private void receivePacket(int from, RIOPacket riopkt) {
 		InChannel in = inConnections.get(from);
 		if(in == null) {
-			in = new InChannel();
+			in = new InChannel(this, from, -1);
 			inConnections.put(from, in);
 		}
 		
-		LinkedList<RIOPacket> toBeDelivered = in.gotPacket(riopkt);
-		for(RIOPacket p: toBeDelivered) {
-			// deliver in-order the next sequence of packets
-			n.onRIOReceive(from, p.getProtocol(), p.getPayload());
+		if(in.gotPacket(riopkt) && !WINDOWED) {
+			// ACK only once the packet is held or delivered, and its
+			// delivery is durable, as the sender forgets what we ACK
+			syncSessions();
+			byte[] seqNumByteArray = Utility.stringToByteArray("" + riopkt.getSeqNum());
+			sendFramed(from, Protocol.ACK, seqNumByteArray);
+		}
+	}
+
+	/**
+	 * Deliver a packet to the node. Called by the incoming channels, in
+	 * order.
+	 * 
+	 * @param from
+	 *            The address from which the packet came
+	 * @param riopkt
+	 *            The packet
+	 */
+	void deliver(int from, RIOPacket riopkt) {
+		boolean last = !riopkt.hasMoreFragments();
+		if(last && !fragmenting.remove(from)) {
+			n.onRIOReceive(from, riopkt.getProtocol(), riopkt.getPayload());
+		}else {
+			if(!last) {
+				fragmenting.add(from);
+			}
+			n.onRIOReceiveFragment(from, riopkt.getProtocol(), riopkt.getPayload(), last);
+		}
+		if(last) {
+			saveDelivery(from, riopkt.getSeqNum());
+		}
+	}
+
+	/**
+	 * Make the delivery of a message durable, along with the node's state for
+	 * its sender, in a single write. The node may crash before it is written,
+	 * in which case the message is delivered again after the restart.
+	 * 
+	 * @param from
+	 *            The address from which the message came
+	 * @param seqNum
+	 *            The sequence number of its last packet
+	 */
+	private void saveDelivery(int from, int seqNum) {
+		byte[] state = receiveStates.get(from);
+		ByteBuffer position = ByteBuffer.allocate(8 + (state == null ? 0 : state.length));
+		position.putInt(peerEpochs.get(from)).putInt(seqNum);
+		if(state != null) {
+			position.put(state);
+		}
+		try{
+			sessions.put(String.valueOf(from), position.array());
+			sessionsUnsynced = true;
+		}catch(IOException e) {
+			e.printStackTrace();
+			n.fail();
+		}
+	}
+
+	/**
+	 * Make the positions written so far durable, before they are ACKed. This
+	 * only costs a write with group commit.
+	 */
+	private void syncSessions() {
+		if(!sessionsUnsynced) {
+			return;
+		}
+		try{
+			sessions.sync();
+			sessionsUnsynced = false;
+		}catch(IOException e) {
+			e.printStackTrace();
+			n.fail();
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            A node
+	 * @return The node's state for the messages from peer, as last set with
+	 *         setReceiveState, or null if there is none
+	 */
+	public byte[] getReceiveState(int peer) {
+		start();
+		return receiveStates.get(peer);
+	}
+
+	/**
+	 * Set the node's state for the messages from a node. It is made durable
+	 * with the next message delivered from the node, which is the one being
+	 * handled when called from onRIOReceive.
+	 * 
+	 * @param peer
+	 *            A node
+	 * @param state
+	 *            The state
+	 */
+	public void setReceiveState(int peer, byte[] state) {
+		receiveStates.put(peer, state);
+	}
+
+	/**
+	 * Add a fragment to the message being reassembled from a node, and
+	 * deliver the message once it is whole.
+	 * 
+	 * @param from
+	 *            The address from which the fragment came
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param fragment
+	 *            The fragment
+	 * @param last
+	 *            Whether this is the last fragment of the message
+	 */
+	public void reassemble(int from, int protocol, byte[] fragment, boolean last) {
+		ByteArrayOutputStream buf = reassembly.get(from);
+		if(buf == null) {
+			buf = bufferPool.isEmpty() ? new ByteArrayOutputStream(MTU) : bufferPool.removeFirst();
+			reassembly.put(from, buf);
+		}
+		buf.write(fragment, 0, fragment.length);
+		if(!last) {
+			return;
+		}
+		
+		reassembly.remove(from);
+		byte[] msg = buf.toByteArray();
+		if(bufferPool.size() < REASSEMBLY_POOL_SIZE && buf.size() <= MAX_POOLED_BUFFER) {
+			// the buffer keeps its capacity, so the next message does not
+			// have to grow it again
+			buf.reset();
+			bufferPool.add(buf);
 		}
+		n.onRIOReceive(from, protocol, msg);
 	}
 	
 	/**
@@ -73,13 +702,75 @@ public class ReliableInOrderMsgLayer {
 	 *            The Packet of data
 	 */
 	public void RIOAckReceive(int from, byte[] msg) {
-		int seqNum = Integer.parseInt( Utility.byteArrayToString(msg) );
-		outConnections.get(from).gotACK(seqNum);
+		if(!acceptSession(from, msg)) {
+			return;
+		}
+		int seqNum = Integer.parseInt( Utility.byteArrayToString(msg, SESSION_HEADER_SIZE, msg.length - SESSION_HEADER_SIZE) );
+		OutChannel out = outConnections.get(from);
+		if(out != null) {
+			out.gotACK(seqNum);
+		}
 	}
 
 	/**
-	 * Send a packet using this reliable, in-order messaging layer. Note that
-	 * this method does not include a reliable, in-order broadcast mechanism.
+	 * Receive a windowed acknowledgment packet.
+	 * 
+	 * @param from
+	 *            The address from which the ACK came
+	 * @param msg
+	 *            The packed RIOAckPacket
+	 */
+	public void RIOSackReceive(int from, byte[] msg) {
+		if(!acceptSession(from, msg)) {
+			return;
+		}
+		RIOAckPacket ack = RIOAckPacket.decode(msg, SESSION_HEADER_SIZE, msg.length - SESSION_HEADER_SIZE);
+		OutChannel out = outConnections.get(from);
+		if(ack == null || out == null) {
+			return;
+		}
+		out.gotACK(ack);
+	}
+
+	/**
+	 * Called at the end of every round. Sends the round's batches, then one
+	 * ACK on each incoming channel that has held one for ACK_DELAY rounds and
+	 * could not piggyback it on a batch. Also resends the RESETs that went
+	 * unanswered to the nodes that we have messages for, but no session with
+	 * or no resume point from.
+	 */
+	public void onRoundEnd() {
+		if(epoch < 0) {
+			return;
+		}
+		for(Integer destAddr: outConnections.keySet()) {
+			Long lastSent = resetSendTimes.get(destAddr);
+			if((!hasSession(destAddr) || resuming.contains(destAddr))
+					&& (lastSent == null || n.now() - lastSent >= getTimeout())) {
+				sendReset(destAddr);
+			}
+		}
+		// the ACKs below cover this round's deliveries
+		syncSessions();
+		if(BATCHING) {
+			for(Integer destAddr: outConnections.keySet()) {
+				outConnections.get(destAddr).flush(n);
+			}
+		}
+		if(!WINDOWED) {
+			return;
+		}
+		for(Integer from: inConnections.keySet()) {
+			RIOAckPacket ack = inConnections.get(from).takeAck(false);
+			if(ack != null) {
+				sendFramed(from, Protocol.SACK, ack.pack());
+			}
+		}
+	}
+
+	/**
+	 * Send a packet using this reliable, in-order messaging layer. To send the
+	 * same message to several nodes, use RIOBroadcast instead.
 	 * 
 	 * @param destAddr
 	 *            The address of the destination for this packet
@@ -89,6 +780,9 @@ public class ReliableInOrderMsgLayer {
 	 *            The payload to be sent
 	 */
 	public void RIOSend(int destAddr, int protocol, byte[] payload) {
+		if(!start()) {
+			return;
+		}
 		OutChannel out = outConnections.get(destAddr);
 		if(out == null) {
 			out = new OutChannel(this, destAddr);
@@ -96,21 +790,179 @@ public class ReliableInOrderMsgLayer {
 		}
 		
 		out.sendRIOPacket(n, protocol, payload);
+		if(!hasSession(destAddr)) {
+			sendReset(destAddr);
+		}
 	}
 
 	/**
-	 * Callback for timeouts while waiting for an ACK.
+	 * Send a message reliably to a group of nodes, in order with the other
+	 * messages to each of them.
+	 * 
+	 * Format of the BCAST packet:
+	 *        sender epoch = 4 bytes
+	 *        number of members it is for = 1 byte
+	 *        then for every member:
+	 *            address = 1 byte
+	 *            epoch of the member = 4 bytes
+	 *            sequence number on the channel to the member = 4 bytes
+	 *        protocol = 1 byte
+	 *        payload
+	 * 
+	 * @param destAddrs
+	 *            The addresses of the members. This node is skipped
+	 * @param protocol
+	 *            The protocol identifier for the message
+	 * @param payload
+	 *            The payload to be sent
+	 * @return The id of the broadcast, or -1 if the layer could not start
+	 */
+	public int RIOBroadcast(int[] destAddrs, int protocol, byte[] payload) {
+		if(!start()) {
+			return -1;
+		}
+		Broadcast bcast = new Broadcast(nextBroadcastId++, n.now());
+		boolean shared = !BATCHING && payload.length <= getMaxFragmentSize();
+		LinkedList<Integer> members = new LinkedList<Integer>();
+		LinkedList<RIOPacket> pkts = new LinkedList<RIOPacket>();
+		for(int destAddr: destAddrs) {
+			if(destAddr == n.addr || bcast.missing.get(destAddr)) {
+				continue;
+			}
+			OutChannel out = outConnections.get(destAddr);
+			if(out == null) {
+				out = new OutChannel(this, destAddr);
+				outConnections.put(destAddr, out);
+			}
+			bcast.missing.set(destAddr);
+			if(!shared) {
+				out.sendRIOPacket(n, protocol, payload, bcast);
+			}else {
+				RIOPacket pkt = out.queueBroadcast(n, protocol, payload, bcast);
+				if(pkt != null) {
+					members.add(destAddr);
+					pkts.add(pkt);
+				}
+			}
+			if(!hasSession(destAddr)) {
+				sendReset(destAddr);
+			}
+		}
+		if(bcast.missing.isEmpty()) {
+			return bcast.id;
+		}
+		broadcasts.put(bcast.id, bcast);
+		
+		if(members.size() == 1) {
+			outConnections.get(members.getFirst()).transmit(n, pkts);
+		}else if(members.size() > 1) {
+			ByteBuffer buf = ByteBuffer.allocate(6 + 9 * members.size() + payload.length);
+			buf.putInt(epoch);
+			buf.put((byte) members.size());
+			for(RIOPacket pkt: pkts) {
+				int destAddr = members.removeFirst();
+				buf.put((byte) destAddr);
+				buf.putInt(peerEpochs.get(destAddr));
+				buf.putInt(pkt.getSeqNum());
+			}
+			buf.put((byte) protocol);
+			buf.put(payload);
+			n.broadcast(Protocol.BCAST, buf.array());
+		}
+		return bcast.id;
+	}
+
+	/**
+	 * Called by an outgoing channel when its receiver delivered a broadcast.
+	 * 
+	 * @param bcast
+	 *            The broadcast
+	 * @param destAddr
+	 *            The receiver
+	 */
+	void broadcastDelivered(Broadcast bcast, int destAddr) {
+		bcast.missing.clear(destAddr);
+		if(bcast.missing.isEmpty() && broadcasts.remove(bcast.id) != null) {
+			++broadcastsDelivered;
+			broadcastRounds += n.now() - bcast.sendTime;
+		}
+	}
+
+	/**
+	 * @param broadcastId
+	 *            The id of a broadcast
+	 * @return The members that have not delivered the broadcast yet
+	 */
+	public BitSet getUndeliveredMembers(int broadcastId) {
+		Broadcast bcast = broadcasts.get(broadcastId);
+		return bcast == null ? new BitSet() : (BitSet) bcast.missing.clone();
+	}
+
+	/**
+	 * @return The largest payload that a packet can carry within the MTU
+	 */
+	static int getMaxFragmentSize() {
+		return Math.max(1, MTU - SESSION_HEADER_SIZE - RIOPacket.HEADER_SIZE);
+	}
+
+	/**
+	 * @return The number of rounds to wait for an ACK before resending. In
+	 *         windowed mode, this includes the rounds the receiver may hold
+	 *         the ACK for
+	 */
+	public static int getTimeout() {
+		return WINDOWED ? TIMEOUT + ACK_DELAY : TIMEOUT;
+	}
+
+	/**
+	 * Callback for timeouts while waiting for an ACK. Each channel has at most
+	 * one timer that counts, for the packet that has waited the longest.
 	 * 
 	 * This method is here and not in OutChannel because OutChannel is not a
 	 * public class.
 	 * 
 	 * @param destAddr
-	 *            The receiving node of the unACKed packet
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
+	 *            The receiving node of the unACKed packets
+	 */
+	public void onTimeout(Integer destAddr) {
+		outConnections.get(destAddr).onTimeout(n);
+	}
+
+	/**
+	 * Take the ACK that we owe a node, if any, to piggyback on data for it.
+	 * 
+	 * @param destAddr
+	 *            The node the data is for
+	 * @return The ACK, or null if we owe it none
 	 */
-	public void onTimeout(Integer destAddr, Integer seqNum) {
-		outConnections.get(destAddr).onTimeout(n, seqNum);
+	RIOAckPacket takePiggybackAck(int destAddr) {
+		InChannel in = inConnections.get(destAddr);
+		if(!WINDOWED || in == null) {
+			return null;
+		}
+		syncSessions();
+		return in.takeAck(true);
+	}
+
+	/**
+	 * @param destAddr
+	 *            The receiving node of a channel
+	 * @return The number of packets resent on the channel to destAddr
+	 */
+	public int getRetransmits(int destAddr) {
+		OutChannel out = outConnections.get(destAddr);
+		return out == null ? 0 : out.getRetransmits();
+	}
+
+	/**
+	 * @param destAddr
+	 *            The receiving node of a channel
+	 * @return The number of packets ACKed per round on the channel to
+	 *         destAddr
+	 */
+	public double getGoodput(int destAddr) {
+		OutChannel out = outConnections.get(destAddr);
+		return out == null ? 0 : out.getGoodput();
 	}
 	
 	@Override
@@ -119,65 +971,187 @@ public class ReliableInOrderMsgLayer {
 		for(Integer i: inConnections.keySet()) {
 			sb.append(inConnections.get(i).toString() + "\n");
 		}
+		for(Integer i: outConnections.keySet()) {
+			sb.append("to " + i + ": " + outConnections.get(i).toString() + "\n");
+		}
+		if(nextBroadcastId > 0) {
+			sb.append("broadcasts: " + nextBroadcastId + ", pending: " + broadcasts.size());
+			if(broadcastsDelivered > 0) {
+				sb.append(", rounds to deliver to all: " + String.format("%.1f", broadcastRounds / (double) broadcastsDelivered));
+			}
+			sb.append("\n");
+		}
 		
 		return sb.toString();
 	}
 }
 
+/**
+ * A message broadcast to a group of nodes, and the members that have not
+ * delivered it yet
+ */
+class Broadcast {
+	final int id;
+	final long sendTime;
+	final BitSet missing;
+	
+	Broadcast(int id, long sendTime) {
+		this.id = id;
+		this.sendTime = sendTime;
+		this.missing = new BitSet();
+	}
+}
+
 /**
  * Representation of an incoming channel to this node
  */
 class InChannel {
 	private int lastSeqNumDelivered;
-	private HashMap<Integer, RIOPacket> outOfOrderMsgs;
+	// the last packet of the last whole message delivered
+	private int lastMessageDelivered;
+	// packets received out of order, at seqNum % window.length, and which
+	// slots of the window hold one
+	private RIOPacket[] window;
+	private long[] occupied;
+	private int numOutOfOrder;
+	private int roundsAckHeld;
+	private ReliableInOrderMsgLayer parent;
+	private int srcAddr;
 	
-	InChannel(){
-		lastSeqNumDelivered = -1;
-		outOfOrderMsgs = new HashMap<Integer, RIOPacket>();
+	/**
+	 * @param parent
+	 *            The layer of the receiving node
+	 * @param srcAddr
+	 *            The sender
+	 * @param lastMessageDelivered
+	 *            The last packet of the last message already delivered, or -1
+	 */
+	InChannel(ReliableInOrderMsgLayer parent, int srcAddr, int lastMessageDelivered){
+		lastSeqNumDelivered = lastMessageDelivered;
+		this.lastMessageDelivered = lastMessageDelivered;
+		window = new RIOPacket[ReliableInOrderMsgLayer.RECEIVE_WINDOW];
+		occupied = new long[(window.length + 63) / 64];
+		numOutOfOrder = 0;
+		roundsAckHeld = -1;
+		this.parent = parent;
+		this.srcAddr = srcAddr;
 	}
 
 	/**
-	 * Method called whenever we receive a data packet.
+	 * Method called whenever we receive a data packet. Delivers it, and the
+	 * packets it was holding up, in order. Packets too far ahead to fit in
+	 * the window are dropped, and will be resent.
 	 * 
 	 * @param pkt
 	 *            The packet
-	 * @return A list of the packets that we can now deliver due to the receipt
-	 *         of this packet
+	 * @return False if the packet was dropped
 	 */
-	public LinkedList<RIOPacket> gotPacket(RIOPacket pkt) {
-		LinkedList<RIOPacket> pktsToBeDelivered = new LinkedList<RIOPacket>();
+	public boolean gotPacket(RIOPacket pkt) {
 		int seqNum = pkt.getSeqNum();
+		if(seqNum > lastSeqNumDelivered + window.length) {
+			return false;
+		}
+		if(roundsAckHeld < 0) {
+			roundsAckHeld = 0;
+		}
 		
 		if(seqNum == lastSeqNumDelivered + 1) {
 			// We were waiting for this packet
-			pktsToBeDelivered.add(pkt);
 			++lastSeqNumDelivered;
-			deliverSequence(pktsToBeDelivered);
-		}else if(seqNum > lastSeqNumDelivered + 1){
+			deliver(pkt);
+			deliverSequence();
+		}else if(seqNum > lastSeqNumDelivered + 1 && !isHeld(seqNum)){
 			// We received a subsequent packet and should store it
-			outOfOrderMsgs.put(seqNum, pkt);
+			int slot = seqNum % window.length;
+			window[slot] = pkt;
+			occupied[slot >> 6] |= 1L << slot;
+			++numOutOfOrder;
 		}
 		// Duplicate packets are ignored
-		
-		return pktsToBeDelivered;
+		return true;
 	}
 
 	/**
-	 * Helper method to grab all the packets we can now deliver.
+	 * Deliver the next packet.
 	 * 
-	 * @param pktsToBeDelivered
-	 *            List to append to
+	 * @param pkt
+	 *            The packet
+	 */
+	private void deliver(RIOPacket pkt) {
+		parent.deliver(srcAddr, pkt);
+		if(!pkt.hasMoreFragments()) {
+			lastMessageDelivered = pkt.getSeqNum();
+		}
+	}
+
+	/**
+	 * @return The last packet of the last whole message delivered, which the
+	 *         sender resumes after if we restart, or -1 if none
+	 */
+	public int getLastMessageDelivered() {
+		return lastMessageDelivered;
+	}
+
+	/**
+	 * Build the ACK for the packets received since the last one.
+	 * 
+	 * @param now
+	 *            Whether to build it even if it has not been held for
+	 *            ACK_DELAY rounds yet, to piggyback it on data
+	 * @return The ACK, or null if no packet arrived since the last one, or
+	 *         the ACK should be held longer
+	 */
+	public RIOAckPacket takeAck(boolean now) {
+		if(roundsAckHeld < 0) {
+			return null;
+		}
+		if(!now && roundsAckHeld < ReliableInOrderMsgLayer.ACK_DELAY) {
+			// wait for more packets to cover
+			++roundsAckHeld;
+			return null;
+		}
+		roundsAckHeld = -1;
+		
+		BitSet sack = new BitSet();
+		int limit = Math.min(window.length, RIOAckPacket.MAX_SACK_BITS);
+		int found = 0;
+		for(int bit = 1; bit < limit && found < numOutOfOrder; ++bit) {
+			if(isHeld(lastSeqNumDelivered + 1 + bit)) {
+				sack.set(bit);
+				++found;
+			}
+		}
+		return new RIOAckPacket(lastSeqNumDelivered, window.length, sack);
+	}
+
+	/**
+	 * @param seqNum
+	 *            A sequence number within the window
+	 * @return True if the packet with seqNum is held in the window
+	 */
+	private boolean isHeld(int seqNum) {
+		int slot = seqNum % window.length;
+		return (occupied[slot >> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * Helper method to deliver all the packets we can now deliver.
 	 */
-	private void deliverSequence(LinkedList<RIOPacket> pktsToBeDelivered) {
-		while(outOfOrderMsgs.containsKey(lastSeqNumDelivered + 1)) {
+	private void deliverSequence() {
+		while(numOutOfOrder > 0 && isHeld(lastSeqNumDelivered + 1)) {
 			++lastSeqNumDelivered;
-			pktsToBeDelivered.add(outOfOrderMsgs.remove(lastSeqNumDelivered));
+			int slot = lastSeqNumDelivered % window.length;
+			RIOPacket pkt = window[slot];
+			window[slot] = null;
+			occupied[slot >> 6] &= ~(1L << slot);
+			--numOutOfOrder;
+			deliver(pkt);
 		}
 	}
 	
 	@Override
 	public String toString() {
-		return "last delivered: " + lastSeqNumDelivered + ", outstanding: " + outOfOrderMsgs.size();
+		return "last delivered: " + lastSeqNumDelivered + ", outstanding: " + numOutOfOrder;
 	}
 }
 
@@ -185,20 +1159,103 @@ class InChannel {
  * Representation of an outgoing channel to this node
  */
 class OutChannel {
-	private HashMap<Integer, RIOPacket> unACKedPackets;
+	/**
+	 * A message that the receiver might not have delivered yet
+	 */
+	private static class Message {
+		int protocol;
+		byte[] payload;
+		// the sequence numbers of its first and last packets
+		int firstSeqNum;
+		int lastSeqNum;
+		// the broadcast it is part of, or null
+		Broadcast bcast;
+		
+		Message(int protocol, byte[] payload, int firstSeqNum, int lastSeqNum, Broadcast bcast) {
+			this.protocol = protocol;
+			this.payload = payload;
+			this.firstSeqNum = firstSeqNum;
+			this.lastSeqNum = lastSeqNum;
+			this.bcast = bcast;
+		}
+	}
+	
+	private TreeMap<Integer, RIOPacket> unACKedPackets;
+	// packets waiting for the end of the round, in batching mode, or for
+	// room in the window
+	private LinkedList<RIOPacket> unsentPackets;
+	// the messages whose packets are not all ACKed in order, to send again
+	// if the receiver restarts and loses the ones it had not delivered
+	private LinkedList<Message> messages;
+	// when each unACKed packet was last sent, oldest first, and how often it
+	// was resent
+	private LinkedHashMap<Integer, Long> sendTimes;
+	private HashMap<Integer, Integer> resends;
+	// the DATA packets sent for unACKed packets, to resend as they are. The
+	// session header in them only changes with the receiver's epoch, which
+	// suspends the channel
+	private HashMap<Integer, byte[]> frames;
 	private int lastSeqNumSent;
 	private ReliableInOrderMsgLayer parent;
 	private int destAddr;
+
+	// round trip time estimates, in rounds, or -1 before the first sample
+	private double srtt;
+	private double rttvar;
+	private int rto;
+	// how many times the timeout has doubled since the last ACK
+	private int backoff;
+	// when the channel's timer goes off, or -1 if it is not set
+	private long timerFireTime;
+
+	// congestion window, in packets, and the receiver's window
+	private double cwnd;
+	private double ssthresh;
+	private long lastLossTime;
+	private int peerCumulativeSeqNum;
+	private int peerWindow;
+	private int dupACKs;
+
+	private int packetsSent;
+	private int retransmits;
+	private int sessions;
+	private int packetsACKed;
+	private long firstSendTime;
+	private long lastACKTime;
 	
 	OutChannel(ReliableInOrderMsgLayer parent, int destAddr){
 		lastSeqNumSent = -1;
-		unACKedPackets = new HashMap<Integer, RIOPacket>();
+		unACKedPackets = new TreeMap<Integer, RIOPacket>();
+		unsentPackets = new LinkedList<RIOPacket>();
+		messages = new LinkedList<Message>();
+		sendTimes = new LinkedHashMap<Integer, Long>();
+		resends = new HashMap<Integer, Integer>();
+		frames = new HashMap<Integer, byte[]>();
 		this.parent = parent;
 		this.destAddr = destAddr;
+		srtt = -1;
+		rttvar = -1;
+		rto = ReliableInOrderMsgLayer.getTimeout();
+		backoff = 0;
+		timerFireTime = -1;
+		cwnd = ReliableInOrderMsgLayer.INITIAL_CWND;
+		ssthresh = ReliableInOrderMsgLayer.RECEIVE_WINDOW;
+		lastLossTime = -1;
+		peerCumulativeSeqNum = -1;
+		// until we hear otherwise, assume the receiver's window is ours
+		peerWindow = ReliableInOrderMsgLayer.RECEIVE_WINDOW;
+		dupACKs = 0;
+		packetsSent = 0;
+		retransmits = 0;
+		sessions = 0;
+		packetsACKed = 0;
+		firstSendTime = -1;
+		lastACKTime = -1;
 	}
 	
 	/**
-	 * Send a new RIOPacket out on this channel.
+	 * Send a new message out on this channel, in as many RIOPackets as it
+	 * takes to keep each within the MTU.
 	 * 
 	 * @param n
 	 *            The sender and parent of this channel
@@ -208,29 +1265,420 @@ class OutChannel {
 	 *            The payload to be sent
 	 */
 	protected void sendRIOPacket(RIONode n, int protocol, byte[] payload) {
+		sendRIOPacket(n, protocol, payload, null);
+	}
+
+	/**
+	 * Send a new message out on this channel, that may be part of a
+	 * broadcast.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param protocol
+	 *            The protocol identifier of this packet
+	 * @param payload
+	 *            The payload to be sent
+	 * @param bcast
+	 *            The broadcast that the message is part of, or null
+	 */
+	protected void sendRIOPacket(RIONode n, int protocol, byte[] payload, Broadcast bcast) {
+		if(queue(protocol, payload, bcast) && !ReliableInOrderMsgLayer.BATCHING) {
+			flush(n);
+		}
+	}
+
+	/**
+	 * Queue a message that is broadcast to several nodes, and send the
+	 * packets ahead of it, as far as the windows allow.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message, which must fit in one packet
+	 * @param bcast
+	 *            The broadcast
+	 * @return The packet of the message, counted as sent, if it can be sent
+	 *         right away, in which case the caller sends it, or null if it
+	 *         waits in the send queue
+	 */
+	protected RIOPacket queueBroadcast(RIONode n, int protocol, byte[] payload, Broadcast bcast) {
+		if(!queue(protocol, payload, bcast)) {
+			return null;
+		}
+		LinkedList<RIOPacket> ahead = takeSendable(n, unsentPackets.size() - 1);
+		if(!ahead.isEmpty()) {
+			transmit(n, ahead);
+		}
+		RIOPacket pkt = null;
+		if(unsentPackets.size() == 1) {
+			LinkedList<RIOPacket> sendable = takeSendable(n, 1);
+			if(!sendable.isEmpty()) {
+				pkt = sendable.getFirst();
+			}
+		}
+		setTimer(n);
+		return pkt;
+	}
+
+	/**
+	 * Number a message and add its packets to the send queue.
+	 * 
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @param bcast
+	 *            The broadcast that the message is part of, or null
+	 * @return True if the message was queued
+	 */
+	private boolean queue(int protocol, byte[] payload, Broadcast bcast) {
+		LinkedList<RIOPacket> newPkts;
 		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-			RIOPacket newPkt = new RIOPacket(protocol, ++lastSeqNumSent, payload);
-			unACKedPackets.put(lastSeqNumSent, newPkt);
-			
-			n.send(destAddr, Protocol.DATA, newPkt.pack());
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, lastSeqNumSent }), ReliableInOrderMsgLayer.TIMEOUT);
-		}catch(Exception e) {
+			newPkts = packetize(protocol, payload, lastSeqNumSent + 1);
+		}catch(IllegalArgumentException e) {
 			e.printStackTrace();
+			return false;
 		}
+		messages.add(new Message(protocol, payload, lastSeqNumSent + 1, lastSeqNumSent + newPkts.size(), bcast));
+		lastSeqNumSent += newPkts.size();
+		unsentPackets.addAll(newPkts);
+		return true;
+	}
+
+	/**
+	 * Split a message into packets that each fit within the MTU.
+	 * 
+	 * @param protocol
+	 *            The protocol identifier of the message
+	 * @param payload
+	 *            The payload of the message
+	 * @param firstSeqNum
+	 *            The sequence number of its first packet
+	 * @return The packets, in order
+	 * @throws IllegalArgumentException
+	 *             If the message cannot be sent
+	 */
+	private static LinkedList<RIOPacket> packetize(int protocol, byte[] payload, int firstSeqNum) {
+		int fragmentSize = ReliableInOrderMsgLayer.getMaxFragmentSize();
+		LinkedList<RIOPacket> pkts = new LinkedList<RIOPacket>();
+		if(payload.length <= fragmentSize) {
+			pkts.add(new RIOPacket(protocol, firstSeqNum, payload));
+		}else {
+			for(int offset = 0; offset < payload.length; offset += fragmentSize) {
+				int end = Math.min(payload.length, offset + fragmentSize);
+				pkts.add(new RIOPacket(protocol, firstSeqNum + pkts.size(),
+						payload, offset, end - offset, end < payload.length));
+			}
+		}
+		return pkts;
+	}
+
+	/**
+	 * Send the packets that are waiting to be sent, as far as the windows
+	 * allow.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	protected void flush(RIONode n) {
+		LinkedList<RIOPacket> pkts = takeSendable(n, unsentPackets.size());
+		if(pkts.isEmpty()) {
+			return;
+		}
+		transmit(n, pkts);
+		setTimer(n);
+	}
+
+	/**
+	 * Take packets off the head of the send queue, as far as the windows
+	 * allow, and count them as sent. The caller sends them.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param max
+	 *            The most packets to take
+	 * @return The packets, in order
+	 */
+	private LinkedList<RIOPacket> takeSendable(RIONode n, int max) {
+		LinkedList<RIOPacket> pkts = new LinkedList<RIOPacket>();
+		while(pkts.size() < max && !unsentPackets.isEmpty() && windowAllows(unsentPackets.getFirst())) {
+			RIOPacket pkt = unsentPackets.removeFirst();
+			unACKedPackets.put(pkt.getSeqNum(), pkt);
+			sendTimes.put(pkt.getSeqNum(), n.now());
+			resends.put(pkt.getSeqNum(), 0);
+			pkts.add(pkt);
+		}
+		if(!pkts.isEmpty() && firstSendTime < 0) {
+			firstSendTime = n.now();
+		}
+		packetsSent += pkts.size();
+		return pkts;
+	}
+
+	/**
+	 * @param pkt
+	 *            The next packet to send
+	 * @return True if the congestion window and the receiver's window have
+	 *         room for pkt
+	 */
+	private boolean windowAllows(RIOPacket pkt) {
+		if(!parent.hasSession(destAddr) || parent.isResuming(destAddr)) {
+			// we do not know the receiver's epoch, or where to resume, yet
+			return false;
+		}
+		if(ReliableInOrderMsgLayer.CONGESTION_CONTROL && unACKedPackets.size() >= Math.max(1, (int) cwnd)) {
+			return false;
+		}
+		// only windowed ACKs advertise the receiver's window
+		return !ReliableInOrderMsgLayer.WINDOWED || pkt.getSeqNum() <= peerCumulativeSeqNum + peerWindow;
+	}
+
+	/**
+	 * Grow the congestion window for newly ACKed packets, and send what now
+	 * fits. Below ssthresh, the window grows by a packet per packet ACKed,
+	 * doubling every round trip (slow start); above it, by about one packet
+	 * per round trip.
+	 * 
+	 * @param numACKed
+	 *            The number of packets that were just ACKed
+	 */
+	private void onACKed(int numACKed) {
+		RIONode n = parent.getNode();
+		if(numACKed > 0) {
+			backoff = 0;
+			packetsACKed += numACKed;
+			lastACKTime = n.now();
+			if(cwnd < ssthresh) {
+				cwnd = Math.min(ssthresh, cwnd + numACKed);
+			}else {
+				cwnd += numACKed / cwnd;
+			}
+			forgetDeliveredMessages();
+		}
+		if(!ReliableInOrderMsgLayer.BATCHING) {
+			flush(n);
+		}
+		setTimer(n);
+	}
+
+	/**
+	 * Forget the messages whose packets are all ACKed, and all the packets
+	 * before them.
+	 */
+	private void forgetDeliveredMessages() {
+		int firstUnACKed = lastSeqNumSent + 1;
+		if(!unACKedPackets.isEmpty()) {
+			firstUnACKed = unACKedPackets.firstKey();
+		}else if(!unsentPackets.isEmpty()) {
+			firstUnACKed = unsentPackets.getFirst().getSeqNum();
+		}
+		while(!messages.isEmpty() && messages.getFirst().lastSeqNum < firstUnACKed) {
+			Message m = messages.removeFirst();
+			if(m.bcast != null) {
+				parent.broadcastDelivered(m.bcast, destAddr);
+			}
+		}
+	}
+
+	/**
+	 * Stop the channel when the receiver restarts, until it tells us where to
+	 * resume from. The packets in flight died with it, and so did the ones it
+	 * held out of order, which it may already have ACKed, so nothing it ACKs
+	 * until then can tell us what it delivered.
+	 */
+	protected void suspend() {
+		unACKedPackets.clear();
+		unsentPackets.clear();
+		sendTimes.clear();
+		resends.clear();
+		frames.clear();
+		backoff = 0;
+	}
+
+	/**
+	 * Resume the channel after the receiver restarted, from the last message
+	 * that it delivered. Every message after that one is sent again, with the
+	 * same sequence numbers, including the packets that the receiver held out
+	 * of order and lost.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param resumePoint
+	 *            The last packet of the last message the receiver delivered
+	 */
+	protected void resume(RIONode n, int resumePoint) {
+		suspend();
+		peerCumulativeSeqNum = resumePoint;
+		peerWindow = ReliableInOrderMsgLayer.RECEIVE_WINDOW;
+		dupACKs = 0;
+		++sessions;
+		
+		while(!messages.isEmpty() && messages.getFirst().lastSeqNum <= resumePoint) {
+			Message m = messages.removeFirst();
+			if(m.bcast != null) {
+				parent.broadcastDelivered(m.bcast, destAddr);
+			}
+		}
+		for(Message m: messages) {
+			unsentPackets.addAll(packetize(m.protocol, m.payload, m.firstSeqNum));
+		}
+		if(!ReliableInOrderMsgLayer.BATCHING) {
+			flush(n);
+		}
+	}
+
+	/**
+	 * Halve the congestion window, as a packet was lost. Losses within a round
+	 * trip of the last one are part of the same congestion, and do not halve
+	 * it again.
+	 */
+	private void onLoss() {
+		long now = parent.getNode().now();
+		if(lastLossTime >= 0 && now - lastLossTime < Math.max(srtt, 1)) {
+			return;
+		}
+		lastLossTime = now;
+		ssthresh = Math.max(2, cwnd / 2);
+		cwnd = ssthresh;
+	}
+
+	/**
+	 * Put packets on the wire, in as few batches as the MTU allows in
+	 * batching mode.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param pkts
+	 *            The packets, in order
+	 */
+	void transmit(RIONode n, LinkedList<RIOPacket> pkts) {
+		if(!ReliableInOrderMsgLayer.BATCHING) {
+			for(RIOPacket pkt: pkts) {
+				transmitAlone(n, pkt);
+			}
+			return;
+		}
+		
+		// fill each batch up to the MTU
+		int room = ReliableInOrderMsgLayer.MTU - ReliableInOrderMsgLayer.SESSION_HEADER_SIZE;
+		RIOAckPacket ack = parent.takePiggybackAck(destAddr);
+		LinkedList<RIOPacket> batch = new LinkedList<RIOPacket>();
+		int batchSize = new RIOBatchPacket(ack, batch).getPackedSize();
+		for(RIOPacket pkt: pkts) {
+			int pktSize = 4 + pkt.getPackedSize();
+			if(batchSize + pktSize > room && (ack != null || !batch.isEmpty())) {
+				transmitBatch(n, ack, batch);
+				ack = null;
+				batch = new LinkedList<RIOPacket>();
+				batchSize = new RIOBatchPacket(null, batch).getPackedSize();
+			}
+			if(batchSize + pktSize > room) {
+				transmitAlone(n, pkt);
+			}else {
+				batch.add(pkt);
+				batchSize += pktSize;
+			}
+		}
+		if(ack != null || !batch.isEmpty()) {
+			transmitBatch(n, ack, batch);
+		}
+	}
+
+	/**
+	 * Put a packet on the wire in a DATA packet of its own, which is kept
+	 * until the packet is ACKed, so that resends do not frame it again.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param pkt
+	 *            The packet
+	 */
+	private void transmitAlone(RIONode n, RIOPacket pkt) {
+		byte[] frame = frames.get(pkt.getSeqNum());
+		if(frame == null) {
+			frame = parent.newFrame(destAddr, pkt.getPackedSize());
+			pkt.encode(frame, ReliableInOrderMsgLayer.SESSION_HEADER_SIZE);
+			frames.put(pkt.getSeqNum(), frame);
+		}
+		n.send(destAddr, Protocol.DATA, frame);
+	}
+
+	/**
+	 * Put packets on the wire in one BATCH packet.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param ack
+	 *            The ACK to piggyback, or null
+	 * @param pkts
+	 *            The packets, in order
+	 */
+	private void transmitBatch(RIONode n, RIOAckPacket ack, LinkedList<RIOPacket> pkts) {
+		RIOBatchPacket batch = new RIOBatchPacket(ack, pkts);
+		byte[] frame = parent.newFrame(destAddr, batch.getPackedSize());
+		batch.encode(frame, ReliableInOrderMsgLayer.SESSION_HEADER_SIZE);
+		n.send(destAddr, Protocol.BATCH, frame);
 	}
 	
 	/**
-	 * Called when a timeout for this channel triggers
+	 * Called when a timeout for this channel triggers. Resends every packet
+	 * that has waited too long for its ACK, and sets the timer for the next
+	 * one.
 	 * 
 	 * @param n
 	 *            The sender and parent of this channel
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
 	 */
-	public void onTimeout(RIONode n, Integer seqNum) {
-		if(unACKedPackets.containsKey(seqNum)) {
-			resendRIOPacket(n, seqNum);
+	public void onTimeout(RIONode n) {
+		if(timerFireTime < 0 || n.now() < timerFireTime) {
+			// a timer that was replaced by an earlier one
+			return;
+		}
+		timerFireTime = -1;
+		
+		int timeout = getTimeout();
+		LinkedList<Integer> expired = new LinkedList<Integer>();
+		for(Map.Entry<Integer, Long> entry: sendTimes.entrySet()) {
+			if(n.now() - entry.getValue() < timeout) {
+				// every packet after it was sent later
+				break;
+			}
+			expired.add(entry.getKey());
+		}
+		if(!expired.isEmpty()) {
+			++backoff;
+			onLoss();
+			resendRIOPackets(n, expired);
+		}
+		setTimer(n);
+	}
+
+	/**
+	 * Make sure that the channel's timer goes off when the packet that has
+	 * waited the longest should be resent. Timers cannot be cancelled, so a
+	 * timer that goes off too early just sets itself again.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	private void setTimer(RIONode n) {
+		if(unACKedPackets.isEmpty()) {
+			return;
+		}
+		long oldestSend = sendTimes.values().iterator().next();
+		long fireTime = Math.max(n.now() + 1, oldestSend + getTimeout());
+		if(timerFireTime >= 0 && timerFireTime <= fireTime) {
+			// the timer is already set to go off in time
+			return;
+		}
+		
+		try{
+			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer" });
+			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr }), (int) (fireTime - n.now()));
+			timerFireTime = fireTime;
+		}catch(Exception e) {
+			e.printStackTrace();
 		}
 	}
 	
@@ -242,26 +1690,151 @@ class OutChannel {
 	 *            The sequence number that was just ACKed
 	 */
 	protected void gotACK(int seqNum) {
+		if(unACKedPackets.containsKey(seqNum)) {
+			sampleRTT(seqNum);
+			release(seqNum);
+			onACKed(1);
+		}
+	}
+
+	/**
+	 * Called when we get a windowed ACK back. Removes all of the outstanding
+	 * packets that it covers.
+	 * 
+	 * @param ack
+	 *            The ACK that was just received
+	 */
+	protected void gotACK(RIOAckPacket ack) {
+		// Sample the RTT of the oldest packet covered that was sent only
+		// once: the receiver held the ACK longest for it
+		LinkedList<Integer> covered = new LinkedList<Integer>(
+				unACKedPackets.headMap(ack.getCumulativeSeqNum(), true).keySet());
+		for(int seqNum = ack.nextSacked(ack.getCumulativeSeqNum() + 1); seqNum >= 0; seqNum = ack.nextSacked(seqNum + 1)) {
+			if(unACKedPackets.containsKey(seqNum)) {
+				covered.add(seqNum);
+			}
+		}
+		for(Integer seqNum: covered) {
+			if(resends.get(seqNum) == 0) {
+				sampleRTT(seqNum);
+				break;
+			}
+		}
+		for(Integer seqNum: covered) {
+			release(seqNum);
+		}
+		
+		if(ack.getCumulativeSeqNum() > peerCumulativeSeqNum) {
+			peerCumulativeSeqNum = ack.getCumulativeSeqNum();
+			dupACKs = 0;
+		}else if(ack.hasSack() && !unACKedPackets.isEmpty() && ++dupACKs == ReliableInOrderMsgLayer.DUP_ACK_THRESHOLD) {
+			// the receiver keeps getting later packets, but not the one it
+			// needs. Resend it, unless it was just resent
+			int first = unACKedPackets.firstKey();
+			if(parent.getNode().now() - sendTimes.get(first) >= Math.max(srtt, 1)) {
+				onLoss();
+				LinkedList<Integer> oldestUnACKed = new LinkedList<Integer>();
+				oldestUnACKed.add(first);
+				resendRIOPackets(parent.getNode(), oldestUnACKed);
+			}
+		}
+		peerWindow = ack.getWindow();
+		onACKed(covered.size());
+	}
+
+	/**
+	 * Update the round trip time estimates with the ACK of a packet, unless
+	 * the packet was resent, in which case we cannot tell which send was
+	 * ACKed.
+	 * 
+	 * @param seqNum
+	 *            The sequence number of the ACKed packet
+	 */
+	private void sampleRTT(int seqNum) {
+		if(resends.get(seqNum) > 0) {
+			return;
+		}
+		double rtt = parent.getNode().now() - sendTimes.get(seqNum);
+		if(srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+			srtt = 0.875 * srtt + 0.125 * rtt;
+		}
+		// ACKs that come in the same round as a timeout can lose the race, so
+		// always leave at least a round of slack
+		int estimate = (int) Math.ceil(srtt + Math.max(1, 4 * rttvar));
+		rto = Math.max(ReliableInOrderMsgLayer.MIN_TIMEOUT, Math.min(ReliableInOrderMsgLayer.MAX_TIMEOUT, estimate));
+	}
+
+	/**
+	 * Forget an ACKed packet.
+	 * 
+	 * @param seqNum
+	 *            The sequence number of the ACKed packet
+	 */
+	private void release(int seqNum) {
 		unACKedPackets.remove(seqNum);
+		sendTimes.remove(seqNum);
+		resends.remove(seqNum);
+		frames.remove(seqNum);
+	}
+
+	/**
+	 * @return The number of rounds to wait for an ACK
+	 */
+	private int getTimeout() {
+		if(!ReliableInOrderMsgLayer.ADAPTIVE_TIMEOUT) {
+			return ReliableInOrderMsgLayer.getTimeout();
+		}
+		long timeout = (long) rto << Math.min(backoff, 30);
+		return (int) Math.max(rto, Math.min(timeout, ReliableInOrderMsgLayer.MAX_TIMEOUT));
+	}
+
+	/**
+	 * @return The number of packets resent on this channel
+	 */
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	/**
+	 * @return The number of packets ACKed per round, from the first send to
+	 *         the last ACK
+	 */
+	public double getGoodput() {
+		if(lastACKTime < 0) {
+			return 0;
+		}
+		return packetsACKed / (double) (lastACKTime - firstSendTime + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "sent: " + packetsSent + ", retransmitted: " + retransmits + ", sessions: " + sessions + ", unACKed: " + unACKedPackets.size() + ", queued: " + unsentPackets.size() + ", timeout: " + getTimeout() + ", cwnd: " + String.format("%.1f", cwnd) + ", goodput: " + String.format("%.3f", getGoodput()) + " packets/round";
 	}
 	
 	/**
-	 * Resend an unACKed packet.
+	 * Resend unACKed packets.
 	 * 
 	 * @param n
 	 *            The sender and parent of this channel
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
+	 * @param seqNums
+	 *            The sequence numbers of the unACKed packets, oldest send
+	 *            first
 	 */
-	private void resendRIOPacket(RIONode n, int seqNum) {
-		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-			RIOPacket riopkt = unACKedPackets.get(seqNum);
-			
-			n.send(destAddr, Protocol.DATA, riopkt.pack());
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, seqNum }), ReliableInOrderMsgLayer.TIMEOUT);
-		}catch(Exception e) {
-			e.printStackTrace();
+	private void resendRIOPackets(RIONode n, LinkedList<Integer> seqNums) {
+		LinkedList<RIOPacket> pkts = new LinkedList<RIOPacket>();
+		for(Integer seqNum: seqNums) {
+			pkts.add(unACKedPackets.get(seqNum));
+			resends.put(seqNum, resends.get(seqNum) + 1);
+			// move it to the back of the send order
+			sendTimes.remove(seqNum);
+			sendTimes.put(seqNum, n.now());
 		}
+		
+		transmit(n, pkts);
+		retransmits += pkts.size();
 	}
 }
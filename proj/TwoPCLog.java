@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.washington.cs.cse490h.lib.Node;
+import edu.washington.cs.cse490h.lib.WriteAheadLog;
+
+/**
+ * <pre>
+ * Recovery log of a 2PC node, kept in a WriteAheadLog.
+ *
+ * Every CHECKPOINT_INTERVAL records, the state of all the transactions the
+ * node still remembers is written as a checkpoint record, and the segments
+ * before it are thrown away. Recovery walks back from the end of the log to
+ * the latest checkpoint and replays only the records after it, so its cost
+ * depends on the number of transactions remembered, not on the history.
+ * Transactions that everybody knows the outcome of can be dropped from the
+ * checkpoints with forget().
+ *
+ * Every record is synced as it is logged, unless setSyncEachRecord(false)
+ * is called, in which case the owner calls sync() before it acts on what it
+ * logged, such as by sending the messages that depend on it.
+ *
+ * Records:
+ *        type: 1 byte
+ *        BEGIN: nothing else. Written when the node first starts
+ *        START, YES: transaction id: 8 bytes
+ *        COMMIT, ABORT: transaction id: 8 bytes
+ *        CHECKPOINT: number of transactions: 4 bytes
+ *                transactions:
+ *                        transaction id: 8 bytes
+ *                        flags (COORDINATOR, VOTED_YES): 1 byte
+ *                        decision: 1 byte
+ * </pre>
+ */
+public class TwoPCLog {
+    public static final int CHECKPOINT_INTERVAL = 64;
+    public static final int SEGMENT_SIZE = 1 << 16;
+
+    private static final byte BEGIN = 0;
+    private static final byte START = 1;
+    private static final byte YES = 2;
+    private static final byte COMMIT = 3;
+    private static final byte ABORT = 4;
+    private static final byte CHECKPOINT = 5;
+
+    private static final int COORDINATOR = 1;
+    private static final int VOTED_YES = 2;
+
+    /**
+     * What the log says about a transaction
+     */
+    public static class TxnState {
+        public boolean coordinator = false;
+        public boolean votedYes = false;
+        public Node2PC.Decision decision = Node2PC.Decision.UNDECIDED;
+    }
+
+    private final WriteAheadLog wal;
+    private final int checkpointInterval;
+    private final HashMap<Long, TxnState> txns;
+    private int sinceCheckpoint;
+    private int recordsRead;
+    private boolean syncEachRecord;
+    // whether records were logged since the last sync
+    private boolean unsynced;
+
+    /**
+     * Open the log of a node, checkpointing every CHECKPOINT_INTERVAL records
+     *
+     * @param n
+     *            The node that owns the log
+     * @param name
+     *            The name of the log
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public TwoPCLog(Node n, String name) throws IOException {
+        this(n, name, CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Open the log of a node
+     *
+     * @param n
+     *            The node that owns the log
+     * @param name
+     *            The name of the log
+     * @param checkpointInterval
+     *            Number of records between checkpoints, or 0 to never
+     *            checkpoint
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public TwoPCLog(Node n, String name, int checkpointInterval)
+            throws IOException {
+        this.wal = n.getWriteAheadLog(name, SEGMENT_SIZE);
+        this.checkpointInterval = checkpointInterval;
+        this.txns = new HashMap<Long, TxnState>();
+        this.sinceCheckpoint = 0;
+        this.recordsRead = 0;
+        this.syncEachRecord = true;
+        this.unsynced = false;
+    }
+
+    /**
+     * @param syncEachRecord
+     *            Whether to sync every record as it is logged. If not, the
+     *            records are only durable after the next sync()
+     */
+    public void setSyncEachRecord(boolean syncEachRecord) {
+        this.syncEachRecord = syncEachRecord;
+    }
+
+    /**
+     * Make the records logged so far durable, if they are not already
+     *
+     * @throws IOException
+     *             If the log cannot be written
+     */
+    public void sync() throws IOException {
+        if (unsynced) {
+            wal.sync();
+            unsynced = false;
+        }
+    }
+
+    /**
+     * @return true if nothing was ever logged
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public boolean isEmpty() throws IOException {
+        return wal.last() == WriteAheadLog.NO_LSN;
+    }
+
+    /**
+     * Rebuild the state of the transactions from the latest checkpoint and
+     * the records after it. Must be called before logging anything else.
+     *
+     * @return The state of every transaction that was not forgotten
+     * @throws IOException
+     *             If the log cannot be read
+     */
+    public Map<Long, TxnState> recover() throws IOException {
+        txns.clear();
+        recordsRead = 0;
+
+        // walk back to the latest checkpoint, if there can be one
+        long lsn = WriteAheadLog.NO_LSN;
+        if (checkpointInterval > 0) {
+            lsn = wal.last();
+        }
+        long from = wal.first();
+        while (lsn != WriteAheadLog.NO_LSN) {
+            byte[] record = wal.read(lsn);
+            ++recordsRead;
+            if (record[0] == CHECKPOINT) {
+                applyCheckpoint(record);
+                from = wal.next(lsn);
+                break;
+            }
+            lsn = wal.prev(lsn);
+        }
+
+        // and replay what came after it
+        sinceCheckpoint = 0;
+        for (lsn = from; lsn != WriteAheadLog.NO_LSN; lsn = wal.next(lsn)) {
+            byte[] record = wal.read(lsn);
+            ++recordsRead;
+            ++sinceCheckpoint;
+            apply(ByteBuffer.wrap(record));
+        }
+        return txns;
+    }
+
+    /**
+     * @return The number of records the last recover() read
+     */
+    public int getRecordsRead() {
+        return recordsRead;
+    }
+
+    /**
+     * Record that the node started for the first time
+     */
+    public void logBegin() throws IOException {
+        append(ByteBuffer.allocate(1).put(BEGIN));
+    }
+
+    /**
+     * Record that this node started a transaction as its coordinator
+     */
+    public void logStart(long txn) throws IOException {
+        append(ByteBuffer.allocate(9).put(START).putLong(txn));
+    }
+
+    /**
+     * Record that this node voted yes on a transaction
+     */
+    public void logYes(long txn) throws IOException {
+        append(ByteBuffer.allocate(9).put(YES).putLong(txn));
+    }
+
+    /**
+     * Record the outcome of a transaction
+     */
+    public void logDecision(long txn, Node2PC.Decision d) throws IOException {
+        byte type = (d == Node2PC.Decision.COMMIT ? COMMIT : ABORT);
+        append(ByteBuffer.allocate(9).put(type).putLong(txn));
+    }
+
+    /**
+     * Leave a transaction out of the following checkpoints. It is lost from
+     * the log once the records about it are truncated.
+     */
+    public void forget(long txn) {
+        txns.remove(txn);
+    }
+
+    /**
+     * Write a checkpoint now and throw away the segments before it
+     */
+    public void checkpoint() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(5 + 10 * txns.size());
+        buf.put(CHECKPOINT).putInt(txns.size());
+        for (Map.Entry<Long, TxnState> e : txns.entrySet()) {
+            TxnState s = e.getValue();
+            int flags = (s.coordinator ? COORDINATOR : 0)
+                    | (s.votedYes ? VOTED_YES : 0);
+            buf.putLong(e.getKey()).put((byte) flags).put(
+                    (byte) s.decision.ordinal());
+        }
+
+        long lsn = wal.append(buf.array());
+        wal.sync();
+        unsynced = false;
+        sinceCheckpoint = 0;
+        wal.truncateBefore(lsn);
+    }
+
+    public void close() throws IOException {
+        wal.close();
+    }
+
+    private void append(ByteBuffer buf) throws IOException {
+        byte[] record = buf.array();
+        wal.append(record);
+        if (syncEachRecord) {
+            wal.sync();
+        } else {
+            unsynced = true;
+        }
+        apply(ByteBuffer.wrap(record));
+
+        if (checkpointInterval > 0 && ++sinceCheckpoint >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    private void apply(ByteBuffer record) {
+        byte type = record.get();
+        if (type == BEGIN) {
+            return;
+        }
+        if (type == CHECKPOINT) {
+            // only the latest checkpoint matters, and recover() starts there
+            return;
+        }
+
+        TxnState s = getTxn(record.getLong());
+        switch (type) {
+        case START:
+            s.coordinator = true;
+            break;
+        case YES:
+            s.votedYes = true;
+            break;
+        case COMMIT:
+            s.decision = Node2PC.Decision.COMMIT;
+            break;
+        case ABORT:
+            s.decision = Node2PC.Decision.ABORT;
+            break;
+        }
+    }
+
+    private void applyCheckpoint(byte[] record) {
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        buf.get();
+        int count = buf.getInt();
+        for (int i = 0; i < count; ++i) {
+            TxnState s = getTxn(buf.getLong());
+            int flags = buf.get();
+            s.coordinator = (flags & COORDINATOR) != 0;
+            s.votedYes = (flags & VOTED_YES) != 0;
+            s.decision = Node2PC.Decision.values()[buf.get()];
+        }
+    }
+
+    private TxnState getTxn(long txn) {
+        TxnState s = txns.get(txn);
+        if (s == null) {
+            s = new TxnState();
+            txns.put(txn, s);
+        }
+        return s;
+    }
+}
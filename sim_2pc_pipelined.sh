@@ -0,0 +1,7 @@
+#!/bin/bash
+
+rm -rf storage
+rm -f *.log
+rm -f *.replay
+./gen_2pc_workload.pl -n 8 -t 16 -r 20 -p 3 > scripts/2PCPipelined
+./execute.pl -s -n PipelinedNode2PC -f 0 -c scripts/2PCPipelined
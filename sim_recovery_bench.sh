@@ -0,0 +1,6 @@
+#!/bin/bash
+
+rm -rf storage
+rm -f *.log
+rm -f *.replay
+./execute.pl -s -n RecoveryBenchmark -f 0 -c scripts/RecoveryBench